@@ -0,0 +1,238 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Агрегаты команды AGGREGATE: COUNT(*), COUNT(колонка), SUM, MIN, MAX, AVG и необязательная группировка.
+// Хранятся только аккумуляторы групп; группы упорядочены по KeyEncoding.encodeValue значения
+// группировки - так же, как упорядоченный индекс. Частичные результаты обхода разных диапазонов
+// ключей объединяются через merge.
+public class Aggregation {
+    private static final Pattern SPEC_PATTERN = Pattern.compile("\\s*(\\w+)\\s*\\(\\s*(\\*|[\\w.]+)\\s*\\)\\s*");
+
+    public enum Function {
+        COUNT, SUM, MIN, MAX, AVG
+    }
+
+    private final String groupBy;
+    private final List<String> specs = new ArrayList<>();
+    private final List<Function> functions = new ArrayList<>();
+    // null - COUNT(*)
+    private final List<String> columns = new ArrayList<>();
+    private final TreeMap<byte[], Group> groups = new TreeMap<>(Arrays::compareUnsigned);
+
+    // Спецификации вида "SUM(price)"; IllegalArgumentException, если такую разобрать нельзя
+    public Aggregation(String groupBy, List<String> specs) {
+        this.groupBy = groupBy;
+        for (String spec : specs) {
+            Matcher matcher = SPEC_PATTERN.matcher(spec);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid aggregate: " + spec);
+            }
+            Function function = Function.valueOf(matcher.group(1).toUpperCase(Locale.ROOT));
+            String column = matcher.group(2).equals("*") ? null : matcher.group(2);
+            if (column == null && function != Function.COUNT) {
+                throw new IllegalArgumentException("Only COUNT accepts *: " + spec);
+            }
+            this.specs.add(function + "(" + (column != null ? column : "*") + ")");
+            this.functions.add(function);
+            this.columns.add(column);
+        }
+    }
+
+    // Пустая копия с теми же агрегатами - для обхода одного диапазона ключей
+    public Aggregation newPartial() {
+        return new Aggregation(groupBy, specs);
+    }
+
+    // Колонки, которые нужно декодировать из строки
+    public Set<String> getProjection() {
+        Set<String> projection = new HashSet<>();
+        if (groupBy != null) {
+            projection.add(groupBy);
+        }
+        for (String column : columns) {
+            if (column != null) {
+                projection.add(column);
+            }
+        }
+        return projection;
+    }
+
+    public void add(Map<String, Object> row) {
+        Object groupValue = groupBy != null ? row.get(groupBy) : null;
+        Group group = groups.computeIfAbsent(KeyEncoding.encodeValue(groupValue),
+                key -> new Group(groupValue, functions.size()));
+        group.rows++;
+        for (int i = 0; i < functions.size(); i++) {
+            if (columns.get(i) != null) {
+                group.accumulators[i].add(functions.get(i), row.get(columns.get(i)));
+            }
+        }
+    }
+
+    public void merge(Aggregation partial) {
+        for (Map.Entry<byte[], Group> entry : partial.groups.entrySet()) {
+            Group group = groups.get(entry.getKey());
+            if (group == null) {
+                groups.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            group.rows += entry.getValue().rows;
+            for (int i = 0; i < functions.size(); i++) {
+                group.accumulators[i].merge(functions.get(i), entry.getValue().accumulators[i]);
+            }
+        }
+    }
+
+    // Заголовки, затем строка на группу. Без группировки строка одна, даже для пустой таблицы
+    public List<List<Object>> getResult() {
+        List<List<Object>> result = new ArrayList<>();
+        List<Object> headers = new ArrayList<>();
+        if (groupBy != null) {
+            headers.add(groupBy);
+        }
+        headers.addAll(specs);
+        result.add(headers);
+
+        Collection<Group> resultGroups = groups.values();
+        if (groupBy == null && groups.isEmpty()) {
+            resultGroups = List.of(new Group(null, functions.size()));
+        }
+        for (Group group : resultGroups) {
+            List<Object> row = new ArrayList<>();
+            if (groupBy != null) {
+                row.add(group.value);
+            }
+            for (int i = 0; i < functions.size(); i++) {
+                row.add(columns.get(i) == null ? group.rows : group.accumulators[i].getResult(functions.get(i)));
+            }
+            result.add(row);
+        }
+        return result;
+    }
+
+    private static class Group {
+        private final Object value;
+        private final Accumulator[] accumulators;
+        private long rows;
+
+        Group(Object value, int size) {
+            this.value = value;
+            this.accumulators = new Accumulator[size];
+            for (int i = 0; i < size; i++) {
+                accumulators[i] = new Accumulator();
+            }
+        }
+    }
+
+    // Как в SQL, null не учитывается ни в одном агрегате по колонке
+    private static class Accumulator {
+        private long count;
+        // Целые складываются в long, пока не встретится дробное или слишком большое значение
+        private long longSum;
+        private BigDecimal decimalSum;
+        private Object extreme;
+        private byte[] extremeKey;
+
+        void add(Function function, Object value) {
+            if (value == null) {
+                return;
+            }
+            switch (function) {
+                case COUNT:
+                    count++;
+                    break;
+                case SUM:
+                case AVG:
+                    addToSum(value);
+                    break;
+                default:
+                    byte[] key = KeyEncoding.encodeValue(value);
+                    if (extremeKey == null || isBetter(function, key, extremeKey)) {
+                        extreme = value;
+                        extremeKey = key;
+                    }
+            }
+        }
+
+        void merge(Function function, Accumulator other) {
+            switch (function) {
+                case COUNT:
+                    count += other.count;
+                    break;
+                case SUM:
+                case AVG:
+                    count += other.count;
+                    if (other.decimalSum != null) {
+                        addDecimal(other.decimalSum);
+                    }
+                    addLong(other.longSum);
+                    break;
+                default:
+                    if (other.extremeKey != null && (extremeKey == null || isBetter(function, other.extremeKey, extremeKey))) {
+                        extreme = other.extreme;
+                        extremeKey = other.extremeKey;
+                    }
+            }
+        }
+
+        Object getResult(Function function) {
+            switch (function) {
+                case COUNT:
+                    return count;
+                case SUM:
+                    if (count == 0) {
+                        return null;
+                    }
+                    return decimalSum == null ? (Object) longSum : decimalSum.add(BigDecimal.valueOf(longSum));
+                case AVG:
+                    if (count == 0) {
+                        return null;
+                    }
+                    BigDecimal sum = decimalSum == null ? BigDecimal.valueOf(longSum) : decimalSum.add(BigDecimal.valueOf(longSum));
+                    return sum.doubleValue() / count;
+                default:
+                    return extreme;
+            }
+        }
+
+        // Строки из ADD_ROW приходят текстом: "100.25" считается числом, нечисловые значения пропускаются
+        private void addToSum(Object value) {
+            if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                addLong(((Number) value).longValue());
+            } else if (value instanceof BigDecimal) {
+                addDecimal((BigDecimal) value);
+            } else if (value instanceof Number) {
+                addDecimal(BigDecimal.valueOf(((Number) value).doubleValue()));
+            } else if (value instanceof String && ((String) value).trim().matches("-?\\d+(\\.\\d+)?")) {
+                addDecimal(new BigDecimal(((String) value).trim()));
+            } else {
+                return;
+            }
+            count++;
+        }
+
+        private void addLong(long value) {
+            long sum = longSum + value;
+            // Переполнение: знак суммы не совпал со знаками обоих слагаемых
+            if (((longSum ^ sum) & (value ^ sum)) < 0) {
+                addDecimal(BigDecimal.valueOf(longSum).add(BigDecimal.valueOf(value)));
+                longSum = 0;
+            } else {
+                longSum = sum;
+            }
+        }
+
+        private void addDecimal(BigDecimal value) {
+            decimalSum = decimalSum == null ? value : decimalSum.add(value);
+        }
+
+        private static boolean isBetter(Function function, byte[] key, byte[] current) {
+            int comparison = Arrays.compareUnsigned(key, current);
+            return function == Function.MIN ? comparison < 0 : comparison > 0;
+        }
+    }
+}
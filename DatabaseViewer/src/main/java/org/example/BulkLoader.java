@@ -0,0 +1,107 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Потоковая загрузка строк через ADD_ROWS: строки уходят пакетами по batchSize,
+// одновременно в полёте не больше maxInFlight пакетов, поэтому ни клиент, ни сервер
+// не держат в памяти всю загрузку. Каждый пакет - одна транзакция на сервере.
+// Запуск: BulkLoader <таблица> <файл.json с массивом строк> [batchSize] [maxInFlight]
+public class BulkLoader {
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("client.batchSize", 1000);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final TypeReference<LinkedHashMap<String, Object>> ROW_TYPE = new TypeReference<>() {
+    };
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: BulkLoader <table> <rows.json> [batchSize] [maxInFlight]");
+            return;
+        }
+        String tableName = args[0];
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BATCH_SIZE;
+        int maxInFlight = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_IN_FLIGHT;
+
+        ObjectMapper mapper = new ObjectMapper();
+        try (ServerConnection connection = new ServerConnection("localhost", 8080);
+             JsonParser parser = mapper.getFactory().createParser(new File(args[1]))) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                System.err.println("Expected a JSON array of rows in " + args[1]);
+                return;
+            }
+
+            // Строки читаются из файла по одной, по мере отправки пакетов
+            Iterator<Map<String, Object>> rows = new Iterator<>() {
+                private JsonToken next = parser.nextToken();
+
+                @Override
+                public boolean hasNext() {
+                    return next == JsonToken.START_OBJECT;
+                }
+
+                @Override
+                public Map<String, Object> next() {
+                    try {
+                        Map<String, Object> row = mapper.readValue(parser, ROW_TYPE);
+                        next = parser.nextToken();
+                        return row;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot read row from " + args[1], e);
+                    }
+                }
+            };
+
+            long start = System.nanoTime();
+            long loaded = addRows(connection, tableName, rows, batchSize, maxInFlight);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Loaded %d rows into %s in %.1f s (%.0f rows/s)%n", loaded, tableName, seconds, loaded / seconds);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static long addRows(ServerConnection connection, String tableName, Iterator<Map<String, Object>> rows) throws IOException {
+        return addRows(connection, tableName, rows, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    // Возвращает число вставленных строк (выданных ключей); сами ключи не копятся, чтобы память
+    // не росла с размером загрузки. При ошибке пакета загрузка прерывается;
+    // уже подтверждённые пакеты остаются вставленными
+    public static long addRows(ServerConnection connection, String tableName, Iterator<Map<String, Object>> rows,
+                               int batchSize, int maxInFlight) throws IOException {
+        long loaded = 0;
+        Deque<CompletableFuture<Object>> inFlight = new ArrayDeque<>();
+
+        while (rows.hasNext()) {
+            List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && rows.hasNext()) {
+                batch.add(rows.next());
+            }
+
+            if (inFlight.size() >= maxInFlight) {
+                loaded += awaitBatch(connection, inFlight.removeFirst()).size();
+            }
+            inFlight.addLast(connection.sendAsync("ADD_ROWS", tableName, batch));
+        }
+
+        while (!inFlight.isEmpty()) {
+            loaded += awaitBatch(connection, inFlight.removeFirst()).size();
+        }
+        return loaded;
+    }
+
+    private static List<?> awaitBatch(ServerConnection connection, CompletableFuture<Object> batch) throws IOException {
+        Object response = connection.await(batch, "ADD_ROWS");
+        if (!(response instanceof List)) {
+            throw new IOException("ADD_ROWS failed: " + response);
+        }
+        return (List<?>) response;
+    }
+}
@@ -3,38 +3,47 @@ package org.example;
 import com.formdev.flatlaf.*;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.Socket;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import javax.swing.table.TableModel;
 import javax.swing.table.TableRowSorter;
 import java.util.List;
 import java.util.Vector;
-import java.util.regex.Pattern;
 
 public class DatabaseClient extends JFrame {
+    // Пауза после последнего изменения строки поиска перед запросом к серверу
+    private static final int SEARCH_DELAY_MS = 250;
+
     private JComboBox<String> tables_list;
     private JTable table_db;
     private JScrollPane scroll_panel;
     private boolean is_ascending = true;
+    private String sort_column;
     private JComboBox<String> columns_list;
     private JTextField search_field;
     private JMenu file_menu;
     private JMenu edit_menu;
     private JMenu help_menu;
     private JButton search_button;
+    private javax.swing.Timer search_timer;
+    private SwingWorker<Object, Void> search_worker;
 
     private Vector<String> allColumns = new Vector<>();
     private Map<Integer, Object> primaryKeyValues = new HashMap<>();
     private Map<Integer, Map<String, Object>> foreignKeyValues = new HashMap<>();
     private Map<String, List<String>> foreignKeyMapping = new HashMap<>();
 
+    private final ServerConnection connection = new ServerConnection("localhost", 8080);
+
     public DatabaseClient() {
         setTitle("Travel Agency Database");
         setSize(600, 400);
@@ -69,7 +78,7 @@ public class DatabaseClient extends JFrame {
         scroll_panel = new JScrollPane(table_db);
         add(scroll_panel, BorderLayout.CENTER);
 
-        DatabaseUtils.loadTables(tables_list);
+        DatabaseUtils.loadTables(connection, tables_list);
 
         tables_list.setSelectedItem("tours");
         displayTable("tours");
@@ -136,23 +145,23 @@ public class DatabaseClient extends JFrame {
             }
         });
 
-        search_field.addKeyListener(new KeyAdapter() {
+        // Поиск - только при изменении текста (стрелки и Shift его не меняют) и не на каждую клавишу
+        search_timer = new javax.swing.Timer(SEARCH_DELAY_MS, e -> searchTable(search_field.getText().trim()));
+        search_timer.setRepeats(false);
+        search_field.getDocument().addDocumentListener(new DocumentListener() {
             @Override
-            public void keyReleased(KeyEvent e) {
-                String searchValue = search_field.getText().trim();
-                if (searchValue.isEmpty()) {
-                    ((TableRowSorter<?>) table_db.getRowSorter()).setRowFilter(null);
-                } else {
-                    String columnName = (String) columns_list.getSelectedItem();
-                    int columnIndex = table_db.getColumnModel().getColumnIndex(columnName);
+            public void insertUpdate(DocumentEvent e) {
+                search_timer.restart();
+            }
 
-                    TableRowSorter<?> sorter = (TableRowSorter<?>) table_db.getRowSorter();
-                    sorter.setRowFilter(RowFilter.regexFilter("(?i)^" + Pattern.quote(searchValue), columnIndex));
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                search_timer.restart();
+            }
 
-                    if (table_db.getRowCount() > 0) {
-                        table_db.changeSelection(0, columnIndex, false, false);
-                    }
-                }
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                search_timer.restart();
             }
         });
     }
@@ -211,18 +220,10 @@ public class DatabaseClient extends JFrame {
     }
 
     private void displayTable(String table_name, String order_by_column) {
+        cancelSearch();
+        sort_column = order_by_column;
         try {
-            Socket socket = new Socket("localhost", 8080);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-            out.writeObject("GET_TABLE_DATA");
-            out.writeObject(table_name);
-            out.writeObject(order_by_column);
-            out.writeBoolean(is_ascending);
-            out.flush();
-
-            List<List<Object>> tableData = (List<List<Object>>) in.readObject();
+            List<List<Object>> tableData = (List<List<Object>>) connection.send("GET_TABLE_DATA", table_name, order_by_column, is_ascending);
             setTableData(table_name, tableData);
 
             columns_list.removeAllItems();
@@ -234,14 +235,86 @@ public class DatabaseClient extends JFrame {
                     }
                 }
             }
-
-            socket.close();
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void setTableData(String tableName, List<List<Object>> tableData) {
+    // Фильтрация выполняется на сервере (SEARCH) вне EDT: приходят только подходящие строки.
+    // Ответ на запрос, который уже заменён более новым, не показывается
+    private void searchTable(String searchValue) {
+        String tableName = (String) tables_list.getSelectedItem();
+        String columnName = (String) columns_list.getSelectedItem();
+        if (tableName == null || columnName == null) {
+            return;
+        }
+
+        cancelSearch();
+        // Пустая строка поиска возвращает таблицу в текущей сортировке
+        String orderByColumn = sort_column;
+        boolean ascending = is_ascending;
+        search_worker = new SwingWorker<>() {
+            @Override
+            protected Object doInBackground() throws IOException {
+                return searchValue.isEmpty()
+                        ? connection.send("GET_TABLE_DATA", tableName, orderByColumn, ascending)
+                        : connection.send("SEARCH", tableName, columnName, "PREFIX", searchValue, null, null);
+            }
+
+            @Override
+            protected void done() {
+                if (search_worker != this || isCancelled()) {
+                    return;
+                }
+                search_worker = null;
+
+                Object response;
+                try {
+                    response = get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<List<?>> tableData = toTableData(response);
+                if (tableData == null) {
+                    System.err.println("Search failed: " + response);
+                    return;
+                }
+                setTableData(tableName, tableData);
+
+                if (!searchValue.isEmpty() && table_db.getRowCount() > 0) {
+                    table_db.changeSelection(0, table_db.getColumnModel().getColumnIndex(columnName), false, false);
+                }
+            }
+        };
+        search_worker.execute();
+    }
+
+    private void cancelSearch() {
+        if (search_worker != null) {
+            search_worker.cancel(true);
+            search_worker = null;
+        }
+    }
+
+    // Ответ с таблицей: первая строка - заголовки. null, если вместо таблицы пришла ошибка
+    private static List<List<?>> toTableData(Object response) {
+        if (!(response instanceof List)) {
+            return null;
+        }
+        List<List<?>> tableData = new ArrayList<>();
+        for (Object row : (List<?>) response) {
+            if (!(row instanceof List)) {
+                return null;
+            }
+            tableData.add((List<?>) row);
+        }
+        return tableData;
+    }
+
+    private void setTableData(String tableName, List<? extends List<?>> tableData) {
         Vector<String> visibleColumns = new Vector<>();
         List<Integer> visibleIndexes = new ArrayList<>();
         primaryKeyValues.clear();
@@ -409,19 +482,11 @@ public class DatabaseClient extends JFrame {
     private List<Object> getPrimaryKeyValues(String columnName) {
         List<Object> primaryKeyValues = new ArrayList<>();
         String tableName = null;
-        try (Socket socket = new Socket("localhost", 8080);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
+        try {
             tableName = columnName.replaceAll("_id$", "") + "s";
 
-            out.writeObject("GET_PRIMARY_KEY_VALUES");
-            out.writeObject(columnName);
-            out.writeObject(tableName);
-            out.flush();
-
-            primaryKeyValues = (List<Object>) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+            primaryKeyValues = (List<Object>) connection.send("GET_PRIMARY_KEY_VALUES", columnName, tableName);
+        } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Failed to retrieve primary key values for " + tableName, "Error", JOptionPane.ERROR_MESSAGE);
         }
@@ -429,16 +494,8 @@ public class DatabaseClient extends JFrame {
     }
 
     private boolean sendNewRowToServer(String tableName, Map<String, Object> rowData) {
-        try (Socket socket = new Socket("localhost", 8080);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("ADD_ROW");
-            out.writeObject(tableName);
-            out.writeObject(rowData);
-            out.flush();
-
-            String response = (String) in.readObject();
+        try {
+            Object response = connection.send("ADD_ROW", tableName, rowData);
             if ("SUCCESS".equals(response)) {
                 JOptionPane.showMessageDialog(this, "Row added successfully!");
                 displayTable(tableName);
@@ -447,7 +504,7 @@ public class DatabaseClient extends JFrame {
                 JOptionPane.showMessageDialog(this, "Failed to add row.");
                 return false;
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error: " + e.getMessage(), "Connection Error", JOptionPane.ERROR_MESSAGE);
             return false;
@@ -497,18 +554,11 @@ public class DatabaseClient extends JFrame {
     }
 
     private boolean sendDeleteRowToServer(String tableName, Object id) {
-        try (Socket socket = new Socket("localhost", 8080);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-            out.writeObject("DELETE_ROW");
-            out.writeObject(tableName);
-            out.writeObject(id);  // Отправляем значение ключа для удаления
-            out.flush();
-
-            // Получаем ответ от сервера
-            String response = (String) in.readObject();
-            return "SUCCESS".equals(response);  // Проверка, если операция была успешна
-        } catch (IOException | ClassNotFoundException e) {
+        try {
+            // Отправляем значение ключа для удаления и получаем ответ от сервера:
+            // при успехе это число удалённых строк по таблицам (с учётом каскада)
+            return connection.send("DELETE_ROW", tableName, id) instanceof Map;
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
@@ -529,6 +579,24 @@ public class DatabaseClient extends JFrame {
         Object currentValue = model.getValueAt(selectedRow, selectedCol);
         Object editorField = null;
 
+        // Версия строки на момент начала редактирования: если за это время строку изменит
+        // кто-то другой, сервер вернёт CONFLICT вместо того, чтобы затереть чужую правку
+        Object keyValue = primaryKeyValues.get(selectedRow);
+        Object rowVersion;
+        try {
+            Object response = connection.send("GET_ROW", tableName, keyValue);
+            if (!(response instanceof Map)) {
+                JOptionPane.showMessageDialog(this, "The row no longer exists.", "Error", JOptionPane.ERROR_MESSAGE);
+                displayTable(tableName);
+                return;
+            }
+            rowVersion = ((Map<?, ?>) response).get("version");
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Failed to connect to the server.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
         // Создаем панель для редактирования, отображающую все поля строки
         JPanel inputPanel = new JPanel(new GridLayout(model.getColumnCount(), 2));
         JTextField[] textFields = new JTextField[model.getColumnCount()];
@@ -609,34 +677,30 @@ public class DatabaseClient extends JFrame {
                 newValue = currentValue; // Без изменений
             }
 
-            Object keyValue = primaryKeyValues.get(selectedRow);
+            Map<String, Object> patch = new HashMap<>();
+            patch.put(columnName, newValue);
 
-            if (sendEditRequestToServer(tableName, columnName, newValue, keyValue)) {
+            if (sendEditRequestToServer(tableName, keyValue, patch, rowVersion)) {
                 model.setValueAt(newValue, selectedRow, selectedCol);
             }
         }
     }
 
-    private boolean sendEditRequestToServer(String tableName, String columnName, Object newValue, Object keyValue) {
-        try (Socket socket = new Socket("localhost", 8080);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("UPDATE_ROW");
-            out.writeObject(tableName);
-            out.writeObject(columnName);
-            out.writeObject(newValue);
-            out.writeObject(keyValue);
-            out.flush();
-
-            String response = (String) in.readObject();
-            if ("SUCCESS".equals(response)) {
+    private boolean sendEditRequestToServer(String tableName, Object keyValue, Map<String, Object> patch, Object rowVersion) {
+        try {
+            Object response = connection.send("UPDATE_ROW_PATCH", tableName, keyValue, patch, rowVersion);
+            Object status = response instanceof Map ? ((Map<?, ?>) response).get("status") : response;
+            if ("SUCCESS".equals(status)) {
                 return true;
+            } else if ("CONFLICT".equals(status)) {
+                JOptionPane.showMessageDialog(this, "The row was changed by another user. The table will be reloaded.", "Conflict", JOptionPane.WARNING_MESSAGE);
+                displayTable(tableName);
+                return false;
             } else {
                 JOptionPane.showMessageDialog(this, "Failed to update the value.", "Error", JOptionPane.ERROR_MESSAGE);
                 return false;
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Failed to connect to the server.", "Error", JOptionPane.ERROR_MESSAGE);
             return false;
@@ -7,17 +7,52 @@ import java.io.File;
 import java.sql.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
-
+import java.util.concurrent.*;
+
+// Экспорт из PostgreSQL в Berkeley DB. Таблицы выгружаются параллельно (не больше
+// exporter.threads одновременно), у каждой своё соединение. Строки читаются курсором
+// по exporter.fetchSize и через ограниченную очередь передаются потоку записи, который
+// пишет их в JE транзакциями по exporter.batchSize строк - таблица целиком в памяти не держится.
+// С -Dexporter.layout=shared все таблицы пишутся в одно общее окружение (см. EnvironmentRegistry).
+// С -Dexporter.bulk=true - режим первичной загрузки: таблица создаётся заново как deferred-write
+// база без транзакций, строки приходят из PostgreSQL уже в порядке ключей и дописываются в конец
+// B-дерева, на диск всё сбрасывается один раз в конце; кэш JE на время загрузки увеличен
+// (exporter.cachePercent), очистка журнала и контрольные точки отключены. После загрузки
+// (всех таблиц - в общем окружении) они включаются обратно, и журнал сразу очищается.
 public class DatabaseExporter {
-    public static void main(String[] args) {
-        String url = "jdbc:postgresql://localhost:5432/Travel+agency?user=nina";
+    private static final String URL = "jdbc:postgresql://localhost:5432/Travel+agency?user=nina";
+    private static final int THREADS = Integer.getInteger("exporter.threads", 4);
+    private static final int FETCH_SIZE = Integer.getInteger("exporter.fetchSize", 1000);
+    private static final int BATCH_SIZE = Integer.getInteger("exporter.batchSize", 1000);
+    private static final int QUEUE_SIZE = Integer.getInteger("exporter.queueSize", 10000);
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final boolean SHARED_LAYOUT = "shared".equals(System.getProperty("exporter.layout"));
+    private static final boolean BULK_LOAD = Boolean.getBoolean("exporter.bulk");
+    private static final int BULK_CACHE_PERCENT = Integer.getInteger("exporter.cachePercent", 80);
+
+    // Метка конца таблицы в очереди строк
+    private static final Map<String, Object> END_OF_TABLE = new HashMap<>();
 
+    public static void main(String[] args) {
         File berkeleyDbFolder = new File("berkeley_db");
         if (!berkeleyDbFolder.exists()) {
             berkeleyDbFolder.mkdir();
         }
 
-        try (Connection conn = DriverManager.getConnection(url)) {
+        // Смешанное размещение сервер не прочитает: существующие данные сначала переносятся
+        // StorageLayoutMigrator
+        File[] tableFolders = berkeleyDbFolder.listFiles(File::isDirectory);
+        if (SHARED_LAYOUT && tableFolders != null && tableFolders.length > 0) {
+            System.err.println(berkeleyDbFolder + " uses one environment per table, run StorageLayoutMigrator first");
+            return;
+        }
+        if (!SHARED_LAYOUT && EnvironmentRegistry.isSharedLayout(berkeleyDbFolder)) {
+            System.err.println(berkeleyDbFolder + " uses the shared layout, run with -Dexporter.layout=shared");
+            return;
+        }
+
+        Environment sharedEnvironment = null;
+        try (Connection conn = DriverManager.getConnection(URL)) {
             System.out.println("Connected to PostgreSQL database successfully");
 
             List<Map<String, Object>> schema = extractSchema(conn);
@@ -27,42 +62,152 @@ public class DatabaseExporter {
             mapper.writeValue(schemaFile, schema);
 
             System.out.println("Database schema exported to schema.json");
+            Map<String, Map<String, String>> schemaColumns = RowCodec.loadSchema(schemaFile);
 
             List<String> tables = getTables(conn);
 
-            for (String table : tables) {
-                System.out.println("Processing table: " + table);
-
-                String primaryKey = getPrimaryKey(conn, table);
-                if (primaryKey == null) {
-                    System.out.println("Skipping table " + table + " (no primary key found)");
-                    continue;
+            if (SHARED_LAYOUT) {
+                sharedEnvironment = openEnvironment(berkeleyDbFolder);
+            }
+            Environment environment = sharedEnvironment;
+
+            ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, tables.size())));
+            Map<String, Future<Long>> results = new LinkedHashMap<>();
+            try {
+                for (String table : tables) {
+                    results.put(table, readers.submit(() -> exportTable(table, berkeleyDbFolder, environment,
+                            schemaColumns.getOrDefault(table, Collections.emptyMap()))));
                 }
 
-                List<Map<String, Object>> tableData = fetchTableData(conn, table);
+                boolean failed = false;
+                for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+                    try {
+                        result.getValue().get();
+                    } catch (ExecutionException e) {
+                        failed = true;
+                        System.err.println("Failed to export table " + result.getKey() + ":");
+                        e.getCause().printStackTrace();
+                    }
+                }
 
-                File dbFolder = new File(berkeleyDbFolder, table);
-                if (!dbFolder.exists()) {
-                    dbFolder.mkdir();
+                System.out.println(failed ? "Export finished with errors" : "Data exported to Berkeley DB successfully!");
+            } finally {
+                readers.shutdownNow();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (sharedEnvironment != null) {
+                if (BULK_LOAD) {
+                    finishBulkLoad(sharedEnvironment);
                 }
+                sharedEnvironment.close();
+            }
+        }
+    }
 
-                EnvironmentConfig envConfig = new EnvironmentConfig();
-                envConfig.setAllowCreate(true);
-                Environment dbEnvironment = new Environment(dbFolder, envConfig);
+    private static Environment openEnvironment(File folder) {
+        if (!folder.exists()) {
+            folder.mkdir();
+        }
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        if (BULK_LOAD) {
+            // Во время загрузки журнал только растёт; контрольную точку делает close()
+            envConfig.setCachePercent(BULK_CACHE_PERCENT);
+            envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
+            envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+        }
+        return new Environment(folder, envConfig);
+    }
+
+    // Возврат настроек после загрузки. Журнал перезаписанных баз очищается сразу, а не фоновым
+    // потоком сервера: иначе место освободится не скоро, и окружение какое-то время будет вдвое больше
+    private static void finishBulkLoad(Environment environment) {
+        EnvironmentMutableConfig config = environment.getMutableConfig();
+        config.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "true");
+        config.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "true");
+        environment.setMutableConfig(config);
+
+        CheckpointConfig force = new CheckpointConfig();
+        force.setForce(true);
+        environment.checkpoint(force);
+        boolean cleaned = false;
+        while (environment.cleanLog() > 0) {
+            cleaned = true;
+        }
+        // Очищенные файлы удаляются только после следующей контрольной точки
+        if (cleaned) {
+            environment.checkpoint(force);
+        }
+    }
 
+    // Возвращает число записанных строк или -1, если таблица пропущена.
+    // sharedEnvironment == null - у таблицы своё окружение в berkeley_db/<таблица>
+    private static long exportTable(String table, File berkeleyDbFolder, Environment sharedEnvironment,
+                                    Map<String, String> columnTypes) throws Exception {
+        try (Connection conn = DriverManager.getConnection(URL)) {
+            System.out.println("Processing table: " + table);
+
+            String primaryKey = getPrimaryKey(conn, table);
+            if (primaryKey == null) {
+                System.out.println("Skipping table " + table + " (no primary key found)");
+                return -1;
+            }
+
+            Environment dbEnvironment = sharedEnvironment != null
+                    ? sharedEnvironment
+                    : openEnvironment(new File(berkeleyDbFolder, table));
+
+            try {
+                // Индексы (по внешним ключам и упорядоченные) после перезаписи устарели бы -
+                // сервер построит их заново. Словарь колонок RowCodec сохраняется.
+                // При первичной загрузке и сама таблица заполняется с нуля
+                for (String databaseName : dbEnvironment.getDatabaseNames()) {
+                    if ((databaseName.startsWith(table + ".") && !databaseName.equals(RowCodec.getDictionaryName(table)))
+                            || (BULK_LOAD && databaseName.equals(table))) {
+                        dbEnvironment.removeDatabase(null, databaseName);
+                    }
+                }
+
+                // Сервер потом открывает deferred-write базу как обычную транзакционную
                 DatabaseConfig dbConfig = new DatabaseConfig();
                 dbConfig.setAllowCreate(true);
+                dbConfig.setTransactional(!BULK_LOAD);
+                dbConfig.setDeferredWrite(BULK_LOAD);
                 Database berkeleyDb = dbEnvironment.openDatabase(null, table, dbConfig);
-
-                saveToBerkeleyDB(berkeleyDb, tableData, primaryKey, table, mapper);
-
-                berkeleyDb.close();
-                dbEnvironment.close();
+                // Таблица со строковыми ключами старого формата дописывается в том же формате,
+                // пока её не переведёт KeyEncodingMigrator
+                boolean legacyKeys = EnvironmentRegistry.hasLegacyKeys(berkeleyDb);
+                RowCodec codec = RowCodec.open(dbEnvironment, table, columnTypes);
+
+                try {
+                    BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                    // Второй поток таблицы пишет в JE, пока этот читает из PostgreSQL.
+                    // Перед закрытием базы он должен завершиться, в том числе при ошибке чтения
+                    FutureTask<Long> writer = new FutureTask<>(() -> saveToBerkeleyDB(dbEnvironment, berkeleyDb, queue, primaryKey, legacyKeys, table, codec));
+                    Thread writerThread = new Thread(writer, table + "-writer");
+                    writerThread.start();
+                    try {
+                        fetchTableData(conn, table, BULK_LOAD ? getKeyOrder(primaryKey, columnTypes.get(primaryKey)) : null, queue, writer);
+                        return writer.get();
+                    } finally {
+                        writerThread.interrupt();
+                        writerThread.join();
+                    }
+                } finally {
+                    codec.close();
+                    berkeleyDb.close();
+                }
+            } finally {
+                if (dbEnvironment != sharedEnvironment) {
+                    if (BULK_LOAD) {
+                        finishBulkLoad(dbEnvironment);
+                    }
+                    dbEnvironment.close();
+                }
             }
-
-            System.out.println("Data exported to Berkeley DB successfully!");
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
@@ -126,39 +271,68 @@ public class DatabaseExporter {
         return null;
     }
 
-    public static List<Map<String, Object>> fetchTableData(Connection conn, String tableName) throws SQLException {
-        String query = "SELECT * FROM " + tableName;
-        List<Map<String, Object>> tableData = new ArrayList<>();
+    // Без отключённого autocommit драйвер PostgreSQL игнорирует fetchSize и читает всю выборку сразу
+    // keyOrder - выражение getKeyOrder, если строки нужны в порядке ключей Berkeley DB
+    public static void fetchTableData(Connection conn, String tableName, String keyOrder,
+                                      BlockingQueue<Map<String, Object>> queue, Future<?> writer) throws Exception {
+        String query = "SELECT * FROM " + tableName + (keyOrder != null ? " ORDER BY " + keyOrder : "");
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-        try (PreparedStatement stmt = conn.prepareStatement(query);
-             ResultSet rs = stmt.executeQuery()) {
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                while (rs.next()) {
+                    offer(queue, readRow(rs, metaData, dateFormat), writer);
+                }
+            }
+        } finally {
+            conn.rollback();
+        }
+        offer(queue, END_OF_TABLE, writer);
+    }
 
-            while (rs.next()) {
-                Map<String, Object> row = new HashMap<>();
-                for (int i = 1; i <= columnCount; i++) {
-                    Object value = rs.getObject(i);
+    // Целые ключи KeyEncoding идут в числовом порядке, остальные - как UTF-8 строки,
+    // которые JE сравнивает побайтово, как collation "C"
+    public static String getKeyOrder(String primaryKey, String dataType) {
+        if ("smallint".equals(dataType) || "integer".equals(dataType) || "bigint".equals(dataType)) {
+            return primaryKey;
+        }
+        return "CAST(" + primaryKey + " AS TEXT) COLLATE \"C\"";
+    }
 
-                    // Convert PgArray to Java List
-                    if (value instanceof java.sql.Array) {
-                        value = Arrays.asList((Object[]) ((java.sql.Array) value).getArray());
-                    }
+    // Текущая строка выборки в том виде, в каком она хранится в Berkeley DB
+    public static Map<String, Object> readRow(ResultSet rs, ResultSetMetaData metaData, SimpleDateFormat dateFormat) throws SQLException {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            Object value = rs.getObject(i);
 
-                    // Convert Timestamp or Date to formatted String
-                    if (value instanceof Timestamp) {
-                        value = dateFormat.format((Timestamp) value);
-                    } else if (value instanceof java.sql.Date) {
-                        value = dateFormat.format((java.sql.Date) value);
-                    }
+            // Convert PgArray to Java List
+            if (value instanceof java.sql.Array) {
+                value = Arrays.asList((Object[]) ((java.sql.Array) value).getArray());
+            }
 
-                    row.put(metaData.getColumnName(i), value);
-                }
-                tableData.add(row);
+            // Convert Timestamp or Date to formatted String
+            if (value instanceof Timestamp) {
+                value = dateFormat.format((Timestamp) value);
+            } else if (value instanceof java.sql.Date) {
+                value = dateFormat.format((java.sql.Date) value);
+            }
+
+            row.put(metaData.getColumnName(i), value);
+        }
+        return row;
+    }
+
+    // Если поток записи упал, очередь больше никто не разбирает - ошибка пробрасывается сюда
+    private static void offer(BlockingQueue<Map<String, Object>> queue, Map<String, Object> row, Future<?> writer) throws Exception {
+        while (!queue.offer(row, 1, TimeUnit.SECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new IllegalStateException("Writer stopped before the end of the table");
             }
         }
-        return tableData;
     }
 
     public static String singularize(String tableName) {
@@ -168,30 +342,73 @@ public class DatabaseExporter {
         return tableName;
     }
 
-    public static void saveToBerkeleyDB(Database db, List<Map<String, Object>> tableData, String primaryKey, String tableName, ObjectMapper mapper) {
-        try {
-            String primaryKeyField = singularize(tableName) + "_id";
+    // Строки из очереди пишутся транзакциями по BATCH_SIZE; commitNoSync не ждёт диска,
+    // журнал сбрасывается один раз в конце таблицы. В режиме загрузки транзакций нет,
+    // а deferred-write база сбрасывается на диск одним sync()
+    public static long saveToBerkeleyDB(Environment env, Database db, BlockingQueue<Map<String, Object>> queue,
+                                        String primaryKey, boolean legacyKeys, String tableName, RowCodec codec) throws InterruptedException {
+        String primaryKeyField = singularize(tableName) + "_id";
+        long start = System.nanoTime();
+        long lastReport = start;
+        long saved = 0;
+        long unordered = 0;
+        byte[] previousKey = null;
+
+        Map<String, Object> row = queue.take();
+        while (row != END_OF_TABLE) {
+            Transaction txn = BULK_LOAD ? null : env.beginTransaction(null, null);
+            try {
+                for (int batched = 0; row != END_OF_TABLE && batched < BATCH_SIZE; row = queue.take()) {
+                    Object primaryKeyValue = row.get(primaryKey);
+                    if (primaryKeyValue == null) {
+                        System.out.println("Skipping row without primary key value");
+                        continue;
+                    }
 
-            for (Map<String, Object> row : tableData) {
-                Object primaryKeyValue = row.get(primaryKey);
-                if (primaryKeyValue == null) {
-                    System.out.println("Skipping row without primary key value");
-                    continue;
-                }
+                    row.put(primaryKeyField, primaryKeyValue);
+                    row.remove(primaryKey);
 
-                String key = primaryKeyValue.toString();
-                row.put(primaryKeyField, primaryKeyValue);
-                row.remove(primaryKey);
-                String jsonValue = mapper.writeValueAsString(row);
+                    byte[] keyBytes = KeyEncoding.encodePrimaryKey(primaryKeyValue, legacyKeys);
+                    if (BULK_LOAD && previousKey != null && Arrays.compareUnsigned(keyBytes, previousKey) <= 0) {
+                        unordered++;
+                    }
+                    previousKey = keyBytes;
 
-                DatabaseEntry keyEntry = new DatabaseEntry(key.getBytes());
-                DatabaseEntry valueEntry = new DatabaseEntry(jsonValue.getBytes());
+                    DatabaseEntry keyEntry = new DatabaseEntry(keyBytes);
+                    DatabaseEntry valueEntry = new DatabaseEntry(codec.encode(row));
 
-                db.put(null, keyEntry, valueEntry);
+                    db.put(txn, keyEntry, valueEntry);
+                    batched++;
+                    saved++;
+                }
+                if (txn != null) {
+                    txn.commitNoSync();
+                }
+            } catch (RuntimeException | InterruptedException e) {
+                if (txn != null) {
+                    txn.abort();
+                }
+                throw e;
+            }
+
+            long now = System.nanoTime();
+            if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                System.out.printf("%s: %d rows (%.0f rows/s)%n", tableName, saved, saved / ((now - start) / 1e9));
+                lastReport = now;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+
+        if (BULK_LOAD) {
+            db.sync();
+            // Порядок из PostgreSQL не совпал с порядком ключей - загрузка верна, но медленнее
+            if (unordered > 0) {
+                System.out.println(tableName + ": " + unordered + " rows arrived out of key order");
+            }
+        } else {
+            env.flushLog(true);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: exported %d rows in %.1f s (%.0f rows/s)%n", tableName, saved, seconds, saved / Math.max(seconds, 1e-9));
+        return saved;
     }
 }
-
@@ -1,497 +1,1497 @@
 package org.example;
 
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonSerializer;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.sleepycat.je.*;
 import com.sleepycat.je.Cursor;
+import com.sun.net.httpserver.HttpServer;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
 
 public class DatabaseServer extends Component {
-    private Connection connection;
+    private static final int MAX_PAGE_SIZE = 10_000;
+    // Больше строк за один ADD_ROWS - уже потоковая загрузка пакетами (BulkLoader)
+    private static final int MAX_BATCH_ROWS = Integer.getInteger("server.maxBatchRows", 10_000);
+    // Строк в одном кадре ответа GET_RANGE
+    private static final int RANGE_CHUNK_ROWS = Integer.getInteger("server.rangeChunkRows", 1000);
+    // AGGREGATE делит таблицу на диапазоны не меньше AGGREGATE_PARTITION_KEYS целых ключей
+    private static final int AGGREGATE_THREADS = Integer.getInteger("server.aggregateThreads", Runtime.getRuntime().availableProcessors());
+    private static final int AGGREGATE_PARTITION_KEYS = Integer.getInteger("server.aggregatePartitionKeys", 50_000);
 
-    public DatabaseServer() throws SQLException {
+    private Connection connection;
+    private final EnvironmentRegistry registry = new EnvironmentRegistry(new File("berkeley_db"));
+    private final PrimaryKeyAllocator keyAllocator;
+    private final RowCache rowCache = new RowCache(Long.getLong("server.rowCacheBytes", 64L * 1024 * 1024));
+    private final ResultCache resultCache = new ResultCache(Long.getLong("server.resultCacheBytes", 32L * 1024 * 1024));
+    private final int maxConcurrency = Integer.getInteger("server.maxConcurrency", Runtime.getRuntime().availableProcessors() * 2);
+    // Запросов, ждущих свободного потока; при полной очереди чтение кадров соединения останавливается
+    private final int requestQueueSize = Integer.getInteger("server.requestQueue", 256);
+    // Отдельный пул: части AGGREGATE нельзя ставить в очередь пула запросов, который их ждёт
+    private final ExecutorService aggregateExecutor = Executors.newFixedThreadPool(AGGREGATE_THREADS);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private HttpServer metricsServer;
+
+    public DatabaseServer() throws SQLException, IOException {
         // Подключение к базе данных PostgreSQL
         String url = "jdbc:postgresql://localhost:5432/Travel+agency?user=nina";
         connection = DriverManager.getConnection(url);
+        keyAllocator = new PrimaryKeyAllocator(new File("primary_keys.txt"), registry);
     }
 
     public void startServer() {
+        ExecutorService requestExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(requestQueueSize), DatabaseServer::waitForQueue);
+        ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(connectionExecutor, requestExecutor)));
+
+        // Те же данные, что и у STATS, для систем мониторинга; 0 - не запускать
+        int metricsPort = Integer.getInteger("server.metricsPort", 8081);
+        if (metricsPort > 0) {
+            try {
+                metricsServer = ServerMetrics.startHttpServer(metricsPort, this::getStats);
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint is disabled: " + e.getMessage());
+            }
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(8080)) {
-            System.out.println("Server started. Waiting for clients...");
+            System.out.println("Server started (max " + maxConcurrency + " concurrent requests). Waiting for clients...");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Client connected.");
-                handleClientRequest(clientSocket);
+                connectionExecutor.execute(() -> handleClientConnection(clientSocket, requestExecutor));
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            shutdown(connectionExecutor, requestExecutor);
         }
     }
 
-    private void handleClientRequest(Socket clientSocket) {
-        try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())) {
+    // Очередь полна: поток соединения ждёт места, а клиент упирается в окно TCP,
+    // вместо того чтобы очередь запросов росла без предела
+    private static void waitForQueue(Runnable task, ThreadPoolExecutor executor) {
+        try {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Request executor is shut down");
+            }
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the request queue", e);
+        }
+    }
 
-            String command = (String) in.readObject();
+    private void shutdown(ExecutorService connectionExecutor, ExecutorService requestExecutor) {
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        connectionExecutor.shutdownNow();
+        aggregateExecutor.shutdownNow();
+        requestExecutor.shutdown();
+        try {
+            if (!requestExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                requestExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            requestExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        registry.close();
+    }
 
-            File berkeleyDbFolder = new File("berkeley_db");
+    // Одно соединение обслуживает много команд; ответы помечаются id запроса
+    // и могут уходить не в порядке поступления
+    private void handleClientConnection(Socket clientSocket, ExecutorService requestExecutor) {
+        try (clientSocket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
+
+            WireProtocol.Frame frame;
+            while ((frame = WireProtocol.readFrame(in)) != null) {
+                long requestId = frame.getRequestId();
+                List<Object> args = new ArrayList<>();
+                String command = frame.readCommand(args);
+
+                // Задержка считается с получения кадра, вместе с ожиданием в очереди пула
+                long receivedAt = System.nanoTime();
+                metrics.requestStarted(command, frame.size());
+                requestExecutor.execute(() -> {
+                    try {
+                        // GET_RANGE отвечает несколькими кадрами по мере чтения
+                        if (command.equals("GET_RANGE")) {
+                            streamRange(requestId, args, out);
+                        } else {
+                            sendResponse(out, requestId, command, handleClientRequest(command, args), false);
+                        }
+                    } finally {
+                        metrics.requestFinished(command, System.nanoTime() - receivedAt);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Client disconnected.");
+    }
 
-            switch (command) {
-                case "GET_TABLES":
-                    List<String> tableNames = getTablesFromDatabase(berkeleyDbFolder);
-                    out.writeObject(tableNames);
-                    break;
+    // false - ответ не ушёл (соединение закрыто)
+    private boolean sendResponse(DataOutputStream out, long requestId, String command, Object response, boolean more) {
+        if ("ERROR".equals(response)) {
+            metrics.requestFailed(command);
+        }
 
-                case "GET_TABLE_DATA":
-                    String tableName = (String) in.readObject();
-                    String orderBy = (String) in.readObject();
-                    boolean isAscending = in.readBoolean();
+        byte[] responseFrame;
+        try {
+            responseFrame = WireProtocol.encodeResponse(requestId, response, more);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            metrics.requestFailed(command);
+            try {
+                responseFrame = WireProtocol.encodeResponse(requestId, "ERROR");
+            } catch (IOException ex) {
+                return false;
+            }
+        }
 
-                    File tableFolder = new File(berkeleyDbFolder, tableName);
-                    if (!tableFolder.exists() || !tableFolder.isDirectory()) {
-                        out.writeObject("TABLE_NOT_FOUND");
+        synchronized (out) {
+            try {
+                out.write(responseFrame);
+                out.flush();
+                metrics.responseSent(command, responseFrame.length);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Failed to send response for " + command + ": " + e.getMessage());
+                metrics.requestFailed(command);
+                return false;
+            }
+        }
+    }
+
+    // GET_RANGE таблица, нижний ключ, верхний ключ, [нижний включительно], [верхний включительно],
+    // [по возрастанию], [limit], [колонки]. Ключ null - без границы; флаги по умолчанию true.
+    // Строки уходят кадрами по RANGE_CHUNK_ROWS с FLAG_MORE; последний кадр - без флага.
+    // Блокировка таблицы берётся на каждую порцию и не держится, пока порция уходит клиенту
+    private void streamRange(long requestId, List<Object> args, DataOutputStream out) {
+        Object response;
+        try {
+            String tableName = (String) args.get(0);
+            Object lowerValue = args.get(1);
+            Object upperValue = args.get(2);
+            boolean lowerInclusive = getFlagArgument(args, 3);
+            boolean upperInclusive = getFlagArgument(args, 4);
+            boolean isAscending = getFlagArgument(args, 5);
+            int limit = args.size() > 6 && args.get(6) != null ? Math.max(1, ((Number) args.get(6)).intValue()) : Integer.MAX_VALUE;
+            List<String> columns = getColumnsArgument(args, 7);
+
+            EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+            if (table == null) {
+                response = "TABLE_NOT_FOUND";
+            } else {
+                // В таблице со строковыми ключами (до KeyEncodingMigrator) диапазон лексикографический
+                KeyRange range = new KeyRange(lowerValue != null ? table.encodeKey(lowerValue) : null, lowerInclusive,
+                        upperValue != null ? table.encodeKey(upperValue) : null, upperInclusive, isAscending, limit);
+                Set<String> projection = getProjection(columns, null);
+                List<Object> headers = new ArrayList<>();
+
+                while (true) {
+                    List<Object> chunk = new ArrayList<>();
+                    boolean more = withLock(registry.getLock(tableName).readLock(),
+                            () -> readRangeChunk(table, range, projection, columns, headers, chunk));
+                    if (!more) {
+                        response = chunk;
                         break;
                     }
+                    if (!sendResponse(out, requestId, "GET_RANGE", chunk, true)) {
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            response = "ERROR";
+        }
+        sendResponse(out, requestId, "GET_RANGE", response, false);
+    }
 
-                    List<List<Object>> tableData = getTableDataFromDatabase(tableFolder, orderBy, isAscending);
-                    out.writeObject(tableData);
-                    break;
+    // Левое соединение по внешним ключам: к строке таблицы дописываются колонки родительских
+    // строк ("таблица.колонка"), при отсутствии родителя - null. Обычно родительская таблица меньше:
+    // её нужные колонки собираются в хэш по ключу, затем таблица читается одним проходом.
+    // Если в родительской таблице больше строк, чем строк результата (limit), хэш бросается
+    // на limit записях и родитель ищется по ключу - без подсчёта строк всей таблицы
+    private List<List<Object>> joinTables(EnvironmentRegistry.TableHandle table, Map<String, EnvironmentRegistry.TableHandle> parents,
+                                          List<String> columns, int limit) {
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        List<String> ownColumns = null;
+        if (columns != null) {
+            ownColumns = new ArrayList<>();
+            for (String column : columns) {
+                if (!column.contains(".")) {
+                    ownColumns.add(column);
+                }
+            }
+        }
 
-                case "ADD_ROW":
-                    tableName = (String) in.readObject();
-                    Map<String, Object> rowData = (Map<String, Object>) in.readObject();
+        List<JoinedParent> joinedParents = new ArrayList<>();
+        for (Map.Entry<String, EnvironmentRegistry.TableHandle> parent : parents.entrySet()) {
+            List<String> parentColumns = getParentColumns(parent.getValue(), columns);
+            if (!parentColumns.isEmpty()) {
+                JoinedParent joined = new JoinedParent(parent.getKey(), parent.getValue(), parentColumns);
+                joined.buildHash(limit);
+                joinedParents.add(joined);
+            }
+        }
 
-                    tableFolder = new File(berkeleyDbFolder, tableName);
-                    if (!tableFolder.exists() || !tableFolder.isDirectory()) {
-                        out.writeObject("TABLE_NOT_FOUND");
-                        break;
+        Set<String> projection = getProjection(ownColumns, null);
+        if (projection != null) {
+            for (JoinedParent joined : joinedParents) {
+                projection.add(joined.foreignKeyColumn);
+            }
+        }
+
+        List<List<Object>> result = new ArrayList<>();
+        List<Object> headers = null;
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            while (result.size() <= limit && cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                if (headers == null) {
+                    headers = buildHeaders(primaryKeyField, row, ownColumns);
+                    List<Object> joinedHeaders = new ArrayList<>(headers);
+                    for (JoinedParent joined : joinedParents) {
+                        for (String column : joined.columns) {
+                            joinedHeaders.add(joined.parent.getName() + "." + column);
+                        }
                     }
+                    result.add(joinedHeaders);
+                }
 
-                    boolean success = addRowToDatabase(tableFolder, rowData);
-                    out.writeObject(success ? "SUCCESS" : "FAILURE");
-                    break;
+                List<Object> joinedRow = buildRowData(KeyEncoding.keyToString(keyEntry.getData()), row, headers);
+                for (JoinedParent joined : joinedParents) {
+                    joinedRow.addAll(joined.probe(row.get(joined.foreignKeyColumn)));
+                }
+                result.add(joinedRow);
+            }
+        }
+        return result;
+    }
 
-                case "DELETE_ROW":
-                    Object keyValue;
-                    try {
-                        tableName = (String) in.readObject();
-                        keyValue = in.readObject();
+    // Запрошенные колонки родителя без префикса или, если колонки не заданы, все, кроме ключа
+    private static List<String> getParentColumns(EnvironmentRegistry.TableHandle parent, List<String> columns) {
+        String prefix = parent.getName() + ".";
+        List<String> parentColumns = new ArrayList<>();
+        if (columns != null) {
+            for (String column : columns) {
+                if (column.startsWith(prefix)) {
+                    parentColumns.add(column.substring(prefix.length()));
+                }
+            }
+            return parentColumns;
+        }
 
-                        tableFolder = new File(berkeleyDbFolder, tableName);
-                        if (!tableFolder.exists() || !tableFolder.isDirectory()) {
-                            out.writeObject("TABLE_NOT_FOUND");
-                            break;
-                        }
+        // У таблиц со строками в JSON (до RowFormatMigrator) словарь колонок может быть пустым
+        Collection<String> known = parent.getCodec().getColumns();
+        if (known.isEmpty()) {
+            try (Cursor cursor = parent.getDatabase().openCursor(null, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                if (cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    known = parent.getCodec().decode(valueEntry.getData()).keySet();
+                }
+            }
+        }
+        String primaryKeyField = singularize(parent.getName()) + "_id";
+        for (String column : known) {
+            if (!column.equals(primaryKeyField)) {
+                parentColumns.add(column);
+            }
+        }
+        return parentColumns;
+    }
 
-                        boolean deleteSuccess = deleteRowWithCascade(tableFolder, keyValue);
-                        out.writeObject(deleteSuccess ? "SUCCESS" : "FAILURE");
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        out.writeObject("ERROR");
-                    }
-                    break;
+    // Строка для сортировки без индекса: ключ сортировки - KeyEncoding.encodeValue колонки
+    private static class SortedRow {
+        private final String key;
+        private final byte[] sortKey;
+        private final Map<String, Object> row;
 
-                case "UPDATE_ROW":
-                    tableName = (String) in.readObject();
-                    String columnName = (String) in.readObject();
-                    Object newValue = in.readObject();
-                    keyValue = in.readObject();
+        SortedRow(String key, byte[] sortKey, Map<String, Object> row) {
+            this.key = key;
+            this.sortKey = sortKey;
+            this.row = row;
+        }
+    }
 
-                    tableFolder = new File(berkeleyDbFolder, tableName);
-                    if (!tableFolder.exists() || !tableFolder.isDirectory()) {
-                        out.writeObject("TABLE_NOT_FOUND");
-                        break;
+    // Родительская таблица одного внешнего ключа: хэш ключ -> значения нужных колонок или поиск по ключу
+    private static class JoinedParent {
+        private final String foreignKeyColumn;
+        private final EnvironmentRegistry.TableHandle parent;
+        private final List<String> columns;
+        private final Set<String> projection;
+        private Map<ByteBuffer, List<Object>> hash;
+
+        JoinedParent(String foreignKeyColumn, EnvironmentRegistry.TableHandle parent, List<String> columns) {
+            this.foreignKeyColumn = foreignKeyColumn;
+            this.parent = parent;
+            this.columns = columns;
+            this.projection = new HashSet<>(columns);
+        }
+
+        // Не больше maxEntries записей; если родитель больше, хэша не будет (probe ищет по ключу)
+        void buildHash(int maxEntries) {
+            Map<ByteBuffer, List<Object>> entries = new HashMap<>();
+            try (Cursor cursor = parent.getDatabase().openCursor(null, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    if (entries.size() == maxEntries) {
+                        return;
                     }
+                    entries.put(ByteBuffer.wrap(keyEntry.getData()), getValues(valueEntry.getData()));
+                }
+            }
+            hash = entries;
+        }
 
-                    boolean updateSuccess = updateRowInDatabase(tableFolder, columnName, newValue, keyValue);
-                    out.writeObject(updateSuccess ? "SUCCESS" : "FAILURE");
-                    break;
+        List<Object> probe(Object foreignKeyValue) {
+            List<Object> values = null;
+            if (foreignKeyValue != null) {
+                byte[] key = parent.encodeKey(foreignKeyValue);
+                if (hash != null) {
+                    values = hash.get(ByteBuffer.wrap(key));
+                } else {
+                    DatabaseEntry valueEntry = new DatabaseEntry();
+                    if (parent.getDatabase().get(null, new DatabaseEntry(key), valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                        values = getValues(valueEntry.getData());
+                    }
+                }
+            }
+            return values != null ? values : Collections.nCopies(columns.size(), null);
+        }
 
-                case "GET_PRIMARY_KEY_VALUES":
-                    String keyColumn = (String) in.readObject();
-                    tableName = (String) in.readObject();
+        private List<Object> getValues(byte[] data) {
+            Map<String, Object> row = parent.getCodec().decode(data, projection);
+            List<Object> values = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                values.add(row.get(column));
+            }
+            return values;
+        }
+    }
 
-                    tableFolder = new File(berkeleyDbFolder, tableName);
-                    if (!tableFolder.exists() || !tableFolder.isDirectory()) {
-                        out.writeObject("TABLE_NOT_FOUND");
-                        break;
-                    }
+    // Один проход по таблице без кэша строк: части таблицы обходятся параллельно
+    // и объединяются, в памяти только аккумуляторы групп
+    private List<List<Object>> aggregateTable(EnvironmentRegistry.TableHandle table, Aggregation aggregation) throws Exception {
+        List<KeyRange> ranges = splitKeyRange(table);
+        if (ranges.size() == 1) {
+            aggregation.merge(aggregateRange(table, ranges.get(0), aggregation));
+            return aggregation.getResult();
+        }
 
-                    List<Object> primaryKeyValues = getPrimaryKeyValues(tableFolder);
-                    out.writeObject(primaryKeyValues);
-                    break;
+        List<Future<Aggregation>> partials = new ArrayList<>();
+        try {
+            for (KeyRange range : ranges) {
+                partials.add(aggregateExecutor.submit(() -> aggregateRange(table, range, aggregation)));
+            }
+            for (Future<Aggregation> partial : partials) {
+                aggregation.merge(partial.get());
+            }
+        } finally {
+            for (Future<Aggregation> partial : partials) {
+                partial.cancel(true);
+            }
+        }
+        return aggregation.getResult();
+    }
+
+    private Aggregation aggregateRange(EnvironmentRegistry.TableHandle table, KeyRange range, Aggregation aggregation) {
+        Aggregation partial = aggregation.newPartial();
+        Set<String> projection = aggregation.getProjection();
 
-                // Другие команды, если необходимо
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            // Для COUNT(*) без группировки значения строк не читаются
+            if (projection.isEmpty()) {
+                valueEntry.setPartial(0, 0, true);
             }
 
-            out.flush();
-        } catch (IOException | ClassNotFoundException | SQLException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            OperationStatus status = range.position(cursor, keyEntry, valueEntry);
+            while (status == OperationStatus.SUCCESS && range.contains(keyEntry.getData())) {
+                partial.add(projection.isEmpty()
+                        ? Collections.emptyMap()
+                        : table.getCodec().decode(valueEntry.getData(), projection));
+                status = range.next(cursor, keyEntry, valueEntry);
+            }
         }
+        return partial;
     }
 
-    private List<String> getTablesFromDatabase(File berkeleyDbFolder) {
-        List<String> tableNames = new ArrayList<>();
-        if (berkeleyDbFolder.exists() && berkeleyDbFolder.isDirectory()) {
-            File[] tables = berkeleyDbFolder.listFiles();
-            if (tables != null) {
-                for (File table : tables) {
-                    if (table.isDirectory()) {
-                        tableNames.add(table.getName());
+    // Делятся только таблицы с целыми ключами KeyEncoding: границы берутся равными шагами между
+    // наименьшим и наибольшим ключом. Крайние диапазоны открыты, так что нецелые ключи тоже попадают
+    private List<KeyRange> splitKeyRange(EnvironmentRegistry.TableHandle table) {
+        int partitions = 1;
+        long min = 0;
+        long max = 0;
+
+        if (!table.hasLegacyKeys() && AGGREGATE_THREADS > 1) {
+            try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+                DatabaseEntry firstKey = new DatabaseEntry();
+                DatabaseEntry lastKey = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                valueEntry.setPartial(0, 0, true);
+
+                if (cursor.getFirst(firstKey, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS
+                        && cursor.getLast(lastKey, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS
+                        && KeyEncoding.isIntegerKey(firstKey.getData()) && KeyEncoding.isIntegerKey(lastKey.getData())) {
+                    min = (Long) KeyEncoding.decode(firstKey.getData());
+                    max = (Long) KeyEncoding.decode(lastKey.getData());
+                    // Разность отрицательна только при переполнении
+                    if (max - min > 0) {
+                        partitions = (int) Math.min(AGGREGATE_THREADS, (max - min) / AGGREGATE_PARTITION_KEYS + 1);
                     }
                 }
             }
         }
-        return tableNames;
+
+        List<KeyRange> ranges = new ArrayList<>();
+        byte[] lowerKey = null;
+        for (int i = 1; i < partitions; i++) {
+            byte[] upperKey = KeyEncoding.encodeKey(min + (max - min) / partitions * i);
+            ranges.add(new KeyRange(lowerKey, true, upperKey, false, true, Integer.MAX_VALUE));
+            lowerKey = upperKey;
+        }
+        ranges.add(new KeyRange(lowerKey, true, null, true, true, Integer.MAX_VALUE));
+        return ranges;
     }
 
-    public static String singularize(String tableName) {
-        if (tableName.endsWith("s")) {
-            return tableName.substring(0, tableName.length() - 1);
+    // Не больше RANGE_CHUNK_ROWS строк диапазона в chunk, перед первой строкой - заголовки.
+    // Возвращает true, если за последней строкой в диапазоне и в пределах limit есть ещё
+    private boolean readRangeChunk(EnvironmentRegistry.TableHandle table, KeyRange range, Set<String> projection,
+                                   List<String> columns, List<Object> headers, List<Object> chunk) {
+        String primaryKeyField = singularize(table.getName()) + "_id";
+
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            OperationStatus status = range.position(cursor, keyEntry, valueEntry);
+            int rowCount = 0;
+            while (status == OperationStatus.SUCCESS && range.contains(keyEntry.getData()) && range.getRemaining() > 0) {
+                if (rowCount == RANGE_CHUNK_ROWS) {
+                    return true;
+                }
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                if (headers.isEmpty()) {
+                    headers.addAll(buildHeaders(primaryKeyField, row, columns));
+                    chunk.add(headers);
+                }
+                chunk.add(buildRowData(KeyEncoding.keyToString(keyEntry.getData()), row, headers));
+                range.advance(keyEntry.getData());
+                rowCount++;
+
+                status = range.next(cursor, keyEntry, valueEntry);
+            }
         }
-        return tableName;
+        return false;
     }
 
-    private List<List<Object>> getTableDataFromDatabase(File tableFolder, String orderByColumn, boolean isAscending) throws Exception {
-        EnvironmentConfig envConfig = new EnvironmentConfig();
-        envConfig.setAllowCreate(false);
-        Environment dbEnvironment = new Environment(tableFolder, envConfig);
+    private static boolean getFlagArgument(List<Object> args, int index) {
+        return args.size() <= index || args.get(index) == null || (Boolean) args.get(index);
+    }
 
-        DatabaseConfig dbConfig = new DatabaseConfig();
-        dbConfig.setAllowCreate(false);
-        Database berkeleyDb = dbEnvironment.openDatabase(null, tableFolder.getName(), dbConfig);
+    private Object handleClientRequest(String command, List<Object> args) {
+        try {
+            switch (command) {
+                case "GET_TABLES":
+                    return registry.getTableNames();
+
+                case "GET_TABLE_DATA": {
+                    String tableName = (String) args.get(0);
+                    String orderBy = (String) args.get(1);
+                    boolean isAscending = (Boolean) args.get(2);
+                    // Необязательный четвёртый аргумент - сколько строк вернуть
+                    int limit = args.size() > 3 && args.get(3) != null ? Math.max(1, ((Number) args.get(3)).intValue()) : Integer.MAX_VALUE;
+                    // Необязательный пятый аргумент - список нужных колонок
+                    List<String> columns = getColumnsArgument(args, 4);
+
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
 
-        List<List<Object>> tableData = new ArrayList<>();
-        ObjectMapper mapper = new ObjectMapper();
+                    return readCached(tableName, Arrays.asList(command, tableName, orderBy, isAscending, limit, columns),
+                            () -> getTableDataFromDatabase(table, orderBy, isAscending, limit, columns));
+                }
 
-        String primaryKeyField = singularize(tableFolder.getName()) + "_id";
+                case "SEARCH": {
+                    String tableName = (String) args.get(0);
+                    String columnName = (String) args.get(1);
+                    String operatorName = String.valueOf(args.get(2)).toUpperCase(Locale.ROOT);
+                    Object value = args.get(3);
+                    // Верхняя граница нужна только для RANGE; limit необязателен
+                    Object upperValue = args.size() > 4 ? args.get(4) : null;
+                    int limit = args.size() > 5 && args.get(5) != null ? Math.max(1, ((Number) args.get(5)).intValue()) : Integer.MAX_VALUE;
+                    List<String> columns = getColumnsArgument(args, 6);
+
+                    SearchPredicate.Operator operator;
+                    try {
+                        operator = SearchPredicate.Operator.valueOf(operatorName);
+                    } catch (IllegalArgumentException e) {
+                        return "UNKNOWN_OPERATOR";
+                    }
 
-        try (Cursor cursor = berkeleyDb.openCursor(null, null)) {
-            DatabaseEntry keyEntry = new DatabaseEntry();
-            DatabaseEntry valueEntry = new DatabaseEntry();
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    SearchPredicate predicate = new SearchPredicate(operator, value, upperValue, table.getCodec().getDataType(columnName));
+                    return readCached(tableName, Arrays.asList(command, tableName, columnName, operatorName, value, upperValue, limit, columns),
+                            () -> searchTable(table, columnName, value, upperValue, predicate, limit, columns));
+                }
 
-            boolean headersAdded = false;
+                case "GET_TABLE_PAGE": {
+                    String tableName = (String) args.get(0);
+                    int pageSize = Math.max(1, Math.min(((Number) args.get(1)).intValue(), MAX_PAGE_SIZE));
+                    String continuationToken = (String) args.get(2);
+                    List<String> columns = getColumnsArgument(args, 3);
 
-            while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-                String key = new String(keyEntry.getData());
-                String value = new String(valueEntry.getData());
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
 
-                Map<String, Object> row = mapper.readValue(value, Map.class);
+                    return withLock(registry.getLock(tableName).readLock(),
+                            () -> getTablePageFromDatabase(table, pageSize, continuationToken, columns));
+                }
+
+                case "ADD_ROW": {
+                    String tableName = (String) args.get(0);
+                    Map<String, Object> rowData = (Map<String, Object>) args.get(1);
 
-                if (!headersAdded) {
-                    List<Object> headers = new ArrayList<>(row.keySet());
-                    if (!headers.contains(primaryKeyField)) {
-                        headers.add(0, primaryKeyField);
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
                     }
-                    tableData.add(headers);
-                    headersAdded = true;
+
+                    boolean success = withWriteLock(tableName, () -> addRowToDatabase(table, rowData));
+                    return success ? "SUCCESS" : "FAILURE";
                 }
 
-                List<Object> rowData = new ArrayList<>(row.values());
-                rowData.add(0, key);
-                tableData.add(rowData);
-            }
-        }
+                case "ADD_ROWS": {
+                    String tableName = (String) args.get(0);
+                    List<Map<String, Object>> rows = (List<Map<String, Object>>) args.get(1);
+                    if (rows.size() > MAX_BATCH_ROWS) {
+                        return "BATCH_TOO_LARGE";
+                    }
 
-        berkeleyDb.close();
-        dbEnvironment.close();
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
 
-        if (orderByColumn != null) {
-            int columnIndex = tableData.get(0).indexOf(orderByColumn);
-            if (columnIndex >= 0) {
-                tableData.subList(1, tableData.size()).sort((row1, row2) -> {
-                    Comparable<Object> val1 = (Comparable<Object>) row1.get(columnIndex);
-                    Comparable<Object> val2 = (Comparable<Object>) row2.get(columnIndex);
-                    return isAscending ? val1.compareTo(val2) : val2.compareTo(val1);
-                });
-            }
-        }
+                    return addRowsToDatabase(table, rows);
+                }
 
-        return tableData;
-    }
+                case "DELETE_ROW": {
+                    String tableName = (String) args.get(0);
+                    Object keyValue = args.get(1);
 
-    private boolean addRowToDatabase(File tableFolder, Map<String, Object> rowData) {
-        try {
-            String primaryKey = generatePrimaryKey(tableFolder.getName());
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    Map<String, Integer> deletedRows = deleteRowWithCascade(table, keyValue);
+                    return deletedRows != null ? deletedRows : "FAILURE";
+                }
 
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.registerModule(new com.fasterxml.jackson.datatype.jsr310.JavaTimeModule());
-            mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+                case "UPDATE_ROW": {
+                    String tableName = (String) args.get(0);
+                    String columnName = (String) args.get(1);
+                    Object newValue = args.get(2);
+                    Object keyValue = args.get(3);
 
-            SimpleModule dateModule = new SimpleModule();
-            dateModule.addSerializer(java.util.Date.class, new JsonSerializer<Date>() {
-                @Override
-                public void serialize(Date value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
-                    String formattedDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(value);
-                    gen.writeString(formattedDate);
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    boolean updateSuccess = withWriteLock(tableName,
+                            () -> updateRowInDatabase(table, columnName, newValue, keyValue));
+                    return updateSuccess ? "SUCCESS" : "FAILURE";
                 }
-            });
-            mapper.registerModule(dateModule);
 
-            String serializedData = mapper.writeValueAsString(rowData);
+                case "GET_ROW": {
+                    String tableName = (String) args.get(0);
+                    Object keyValue = args.get(1);
 
-            EnvironmentConfig envConfig = new EnvironmentConfig();
-            envConfig.setAllowCreate(false);
-            Environment dbEnvironment = new Environment(tableFolder, envConfig);
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
 
-            DatabaseConfig dbConfig = new DatabaseConfig();
-            dbConfig.setAllowCreate(false);
-            Database berkeleyDb = dbEnvironment.openDatabase(null, tableFolder.getName(), dbConfig);
+                    return withLock(registry.getLock(tableName).readLock(), () -> getRowWithVersion(table, keyValue));
+                }
 
-            DatabaseEntry keyEntry = new DatabaseEntry(primaryKey.getBytes(StandardCharsets.UTF_8));
-            DatabaseEntry valueEntry = new DatabaseEntry(serializedData.getBytes(StandardCharsets.UTF_8));
-            berkeleyDb.put(null, keyEntry, valueEntry);
+                case "UPDATE_ROW_PATCH": {
+                    String tableName = (String) args.get(0);
+                    Object keyValue = args.get(1);
+                    Map<String, Object> patch = (Map<String, Object>) args.get(2);
+                    // Версия из GET_ROW; null - обновить без проверки
+                    Long expectedVersion = args.size() > 3 && args.get(3) != null ? ((Number) args.get(3)).longValue() : null;
 
-            berkeleyDb.close();
-            dbEnvironment.close();
-            return true;
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    return withWriteLock(tableName, () -> patchRowInDatabase(table, keyValue, patch, expectedVersion));
+                }
+
+                case "GET_PRIMARY_KEY_VALUES": {
+                    String tableName = (String) args.get(1);
+
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    return withLock(registry.getLock(tableName).readLock(),
+                            () -> getPrimaryKeyValues(table));
+                }
+
+                case "AGGREGATE": {
+                    String tableName = (String) args.get(0);
+                    List<String> specs = (List<String>) args.get(1);
+                    // Необязательный третий аргумент - колонка группировки
+                    String groupBy = args.size() > 2 ? (String) args.get(2) : null;
+
+                    Aggregation aggregation;
+                    try {
+                        aggregation = new Aggregation(groupBy, specs);
+                    } catch (IllegalArgumentException e) {
+                        return "INVALID_AGGREGATE";
+                    }
+
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    return readCached(tableName, Arrays.asList(command, tableName, specs, groupBy),
+                            () -> aggregateTable(table, aggregation));
+                }
+
+                case "JOIN": {
+                    String tableName = (String) args.get(0);
+                    // Необязательные: колонки внешних ключей (по умолчанию все), колонки результата
+                    // (родительские - "таблица.колонка") и limit
+                    List<String> foreignKeyColumns = getColumnsArgument(args, 1);
+                    List<String> columns = getColumnsArgument(args, 2);
+                    int limit = args.size() > 3 && args.get(3) != null ? Math.max(1, ((Number) args.get(3)).intValue()) : Integer.MAX_VALUE;
+
+                    EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+                    if (table == null) {
+                        return "TABLE_NOT_FOUND";
+                    }
+
+                    Map<String, String> references = new LinkedHashMap<>(ForeignKeys.getForeignKeyColumns(tableName));
+                    if (foreignKeyColumns != null) {
+                        if (!references.keySet().containsAll(foreignKeyColumns)) {
+                            return "UNKNOWN_FOREIGN_KEY";
+                        }
+                        references.keySet().retainAll(foreignKeyColumns);
+                    }
+
+                    Map<String, EnvironmentRegistry.TableHandle> parents = new LinkedHashMap<>();
+                    for (Map.Entry<String, String> reference : references.entrySet()) {
+                        EnvironmentRegistry.TableHandle parent = registry.getTable(reference.getValue());
+                        if (parent == null) {
+                            return "TABLE_NOT_FOUND";
+                        }
+                        parents.put(reference.getKey(), parent);
+                    }
+
+                    return joinCached(table, parents, Arrays.asList(command, tableName, foreignKeyColumns, columns, limit),
+                            () -> joinTables(table, parents, columns, limit));
+                }
+
+                case "STATS":
+                    return getStats();
+
+                case "CACHE_STATS": {
+                    Map<String, Object> stats = new LinkedHashMap<>();
+                    stats.put("rows", rowCache.getStats());
+                    stats.put("results", resultCache.getStats());
+                    return stats;
+                }
+
+                default:
+                    System.err.println("Unknown command: " + command);
+                    return "UNKNOWN_COMMAND";
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
+            return "ERROR";
         }
     }
 
-    private boolean deleteRowFromDatabase(File tableFolder, Object keyValue) {
+    // Команды, кэши и окружения JE; отдаётся командой STATS и по HTTP (/metrics)
+    private Map<String, Object> getStats() {
+        Map<String, Object> stats = metrics.getStats();
+
+        Map<String, Object> caches = new LinkedHashMap<>();
+        caches.put("rows", rowCache.getStats());
+        caches.put("results", resultCache.getStats());
+        stats.put("caches", caches);
+
+        Map<String, Object> environments = new LinkedHashMap<>();
+        for (Map.Entry<String, EnvironmentStats> environment : registry.getEnvironmentStats(new StatsConfig()).entrySet()) {
+            environments.put(environment.getKey(), ServerMetrics.describe(environment.getValue()));
+        }
+        stats.put("environments", environments);
+        return stats;
+    }
+
+    private <T> T withLock(Lock lock, Callable<T> action) throws Exception {
+        lock.lock();
         try {
-            EnvironmentConfig envConfig = new EnvironmentConfig();
-            envConfig.setAllowCreate(false);
-            Environment dbEnvironment = new Environment(tableFolder, envConfig);
+            return action.call();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            DatabaseConfig dbConfig = new DatabaseConfig();
-            dbConfig.setAllowCreate(false);
-            Database berkeleyDb = dbEnvironment.openDatabase(null, tableFolder.getName(), dbConfig);
+    // Повторный одинаковый запрос без записей в таблицу между ними
+    // отдаётся готовыми байтами, без обхода курсора и сортировки
+    private WireProtocol.EncodedValue readCached(String tableName, List<Object> cacheKey, Callable<Object> read) throws Exception {
+        return withLock(registry.getLock(tableName).readLock(), () -> {
+            long version = resultCache.getVersion(tableName);
+            WireProtocol.EncodedValue response = resultCache.get(cacheKey, version);
+            if (response == null) {
+                response = WireProtocol.encodeValue(read.call());
+                resultCache.put(cacheKey, version, response);
+            }
+            return response;
+        });
+    }
 
-            DatabaseEntry keyEntry = new DatabaseEntry(keyValue.toString().getBytes(StandardCharsets.UTF_8));
+    // Как readCached, но ответ зависит и от родительских таблиц: все они блокируются на чтение
+    // в алфавитном порядке (как в deleteRowWithCascade), а их версии входят в ключ кэша
+    private WireProtocol.EncodedValue joinCached(EnvironmentRegistry.TableHandle table, Map<String, EnvironmentRegistry.TableHandle> parents,
+                                                 List<Object> cacheKey, Callable<Object> read) throws Exception {
+        Set<String> lockedTables = new TreeSet<>();
+        lockedTables.add(table.getName());
+        for (EnvironmentRegistry.TableHandle parent : parents.values()) {
+            lockedTables.add(parent.getName());
+        }
 
-            OperationStatus status = berkeleyDb.delete(null, keyEntry);
+        List<Lock> readLocks = new ArrayList<>();
+        try {
+            for (String lockedTable : lockedTables) {
+                Lock readLock = registry.getLock(lockedTable).readLock();
+                readLock.lock();
+                readLocks.add(readLock);
+            }
 
-            berkeleyDb.close();
-            dbEnvironment.close();
+            List<Object> versionedKey = new ArrayList<>(cacheKey);
+            for (String lockedTable : lockedTables) {
+                versionedKey.add(resultCache.getVersion(lockedTable));
+            }
+            long version = resultCache.getVersion(table.getName());
+            WireProtocol.EncodedValue response = resultCache.get(versionedKey, version);
+            if (response == null) {
+                response = WireProtocol.encodeValue(read.call());
+                resultCache.put(versionedKey, version, response);
+            }
+            return response;
+        } finally {
+            for (Lock readLock : readLocks) {
+                readLock.unlock();
+            }
+        }
+    }
 
-            return status == OperationStatus.SUCCESS;
+    // Любая запись увеличивает версию таблицы, пока блокировка ещё удерживается
+    private <T> T withWriteLock(String tableName, Callable<T> action) throws Exception {
+        Lock lock = registry.getLock(tableName).writeLock();
+        lock.lock();
+        try {
+            return action.call();
+        } finally {
+            resultCache.bumpVersion(tableName);
+            lock.unlock();
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+    public static String singularize(String tableName) {
+        if (tableName.endsWith("s")) {
+            return tableName.substring(0, tableName.length() - 1);
         }
+        return tableName;
     }
 
-    private Map<String, String> getForeignKeyReferences(String tableName) {
-        Map<String, String> references = new HashMap<>();
-        if ("clients".equals(tableName)) {
-            references.put("tour_bookings", "client_id");
+    private List<List<Object>> getTableDataFromDatabase(EnvironmentRegistry.TableHandle table, String orderByColumn, boolean isAscending,
+                                                        int limit, List<String> columns) throws Exception {
+        SecondaryDatabase sortIndex = orderByColumn != null ? table.getSortIndex(orderByColumn) : null;
+        if (sortIndex != null) {
+            return getTableDataByIndex(table, sortIndex, isAscending, limit, columns);
         }
-        if ("accommodations".equals(tableName)) {
-            references.put("tours", "accommodation_id");
+        // По первичному ключу строки уже лежат в нужном порядке (KeyEncoding.encodeKey)
+        if (orderByColumn != null && orderByColumn.equals(singularize(table.getName()) + "_id") && !table.hasLegacyKeys()) {
+            return getTableDataByKey(table, isAscending, limit, columns);
         }
-        if ("excursions".equals(tableName)) {
-            references.put("tours", "excursion_id");
+
+        // Колонка сортировки декодируется, даже если её не просили вернуть
+        Set<String> projection = getProjection(columns, orderByColumn);
+        List<SortedRow> rows = new ArrayList<>();
+
+        // Без сортировки можно остановиться на limit строк, с сортировкой нужна вся таблица
+        int scanLimit = orderByColumn == null ? limit : Integer.MAX_VALUE;
+
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+
+            valueEntry.setPartial(0, 0, true);
+
+            while (rows.size() < scanLimit && cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                String key = KeyEncoding.keyToString(keyEntry.getData());
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                // Ключ сортировки кодируется один раз на строку, а не при каждом сравнении
+                rows.add(new SortedRow(key, orderByColumn != null ? KeyEncoding.encodeValue(row.get(orderByColumn)) : null, row));
+            }
         }
-        if ("tours".equals(tableName)) {
-            references.put("tour_bookings", "tour_id");
+
+        if (orderByColumn != null) {
+            // Тот же порядок, что и у упорядоченного индекса: null первыми, числа как числа
+            Comparator<SortedRow> comparator = (left, right) -> Arrays.compareUnsigned(left.sortKey, right.sortKey);
+            rows.sort(isAscending ? comparator : comparator.reversed());
         }
-        return references;
+
+        List<List<Object>> tableData = new ArrayList<>();
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        for (SortedRow row : rows.subList(0, Math.min(limit, rows.size()))) {
+            if (tableData.isEmpty()) {
+                tableData.add(buildHeaders(primaryKeyField, row.row, columns));
+            }
+            tableData.add(buildRowData(row.key, row.row, tableData.get(0)));
+        }
+        return tableData;
     }
 
-    private boolean deleteRowWithCascade(File tableFolder, Object keyValue) {
-        try {
-            boolean success = deleteRowFromDatabase(tableFolder, keyValue);
-            if (!success) return false;
+    // Сортировка по упорядоченному индексу из indexes.txt: строки читаются сразу в нужном
+    // порядке (getLast/getPrev для убывания), и чтение останавливается на limit строк
+    private List<List<Object>> getTableDataByIndex(EnvironmentRegistry.TableHandle table, SecondaryDatabase sortIndex,
+                                                   boolean isAscending, int limit, List<String> columns) {
+        List<List<Object>> tableData = new ArrayList<>();
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        Set<String> projection = getProjection(columns, null);
+
+        try (SecondaryCursor cursor = sortIndex.openCursor(null, null)) {
+            DatabaseEntry indexKeyEntry = new DatabaseEntry();
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
 
-            String tableName = tableFolder.getName();
-            Map<String, String> foreignKeyReferences = getForeignKeyReferences(tableName);
+            List<Object> headers = null;
+            OperationStatus status = isAscending
+                    ? cursor.getFirst(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT)
+                    : cursor.getLast(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
 
-            if (foreignKeyReferences.isEmpty()) {
-                System.out.println("No related tables found for table: " + tableName);
-                return true;
+            while (status == OperationStatus.SUCCESS && tableData.size() <= limit) {
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                if (headers == null) {
+                    headers = buildHeaders(primaryKeyField, row, columns);
+                    tableData.add(headers);
+                }
+                tableData.add(buildRowData(KeyEncoding.keyToString(keyEntry.getData()), row, headers));
+
+                status = isAscending
+                        ? cursor.getNext(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT)
+                        : cursor.getPrev(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
             }
+        }
+        return tableData;
+    }
 
-            for (Map.Entry<String, String> entry : foreignKeyReferences.entrySet()) {
-                String relatedTableName = entry.getKey();
-                String foreignKeyColumn = entry.getValue();
+    private List<List<Object>> getTableDataByKey(EnvironmentRegistry.TableHandle table, boolean isAscending,
+                                                 int limit, List<String> columns) {
+        List<List<Object>> tableData = new ArrayList<>();
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        Set<String> projection = getProjection(columns, null);
 
-                File relatedTableFolder = new File("berkeley_db/" + relatedTableName);
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
 
-                EnvironmentConfig envConfig = new EnvironmentConfig();
-                envConfig.setAllowCreate(false);
-                Environment dbEnvironment = new Environment(relatedTableFolder, envConfig);
+            OperationStatus status = isAscending
+                    ? cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT)
+                    : cursor.getLast(keyEntry, valueEntry, LockMode.DEFAULT);
 
-                DatabaseConfig dbConfig = new DatabaseConfig();
-                dbConfig.setAllowCreate(false);
-                Database relatedDb = dbEnvironment.openDatabase(null, relatedTableName, dbConfig);
+            while (status == OperationStatus.SUCCESS && tableData.size() <= limit) {
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                if (tableData.isEmpty()) {
+                    tableData.add(buildHeaders(primaryKeyField, row, columns));
+                }
+                tableData.add(buildRowData(KeyEncoding.keyToString(keyEntry.getData()), row, tableData.get(0)));
 
-                Cursor cursor = relatedDb.openCursor(null, null);
-                DatabaseEntry keyEntry = new DatabaseEntry();
-                DatabaseEntry valueEntry = new DatabaseEntry();
+                status = isAscending
+                        ? cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT)
+                        : cursor.getPrev(keyEntry, valueEntry, LockMode.DEFAULT);
+            }
+        }
+        return tableData;
+    }
 
-                while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-                    String jsonData = new String(valueEntry.getData(), StandardCharsets.UTF_8);
+    // Страница таблицы в порядке ключей. Токен продолжения - последний отданный ключ,
+    // следующая страница начинается сразу после него (getSearchKeyRange), поэтому
+    // память сервера зависит только от размера страницы
+    private Map<String, Object> getTablePageFromDatabase(EnvironmentRegistry.TableHandle table, int pageSize, String continuationToken,
+                                                         List<String> columns) throws Exception {
+        List<List<Object>> rows = new ArrayList<>();
+        Set<String> projection = getProjection(columns, null);
+
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        String nextToken = null;
+
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            OperationStatus status;
+            if (continuationToken == null) {
+                status = cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT);
+            } else {
+                byte[] lastKey = Base64.getUrlDecoder().decode(continuationToken);
+                keyEntry.setData(lastKey);
+                status = cursor.getSearchKeyRange(keyEntry, valueEntry, LockMode.DEFAULT);
+                if (status == OperationStatus.SUCCESS && Arrays.equals(keyEntry.getData(), lastKey)) {
+                    status = cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT);
+                }
+            }
+
+            List<Object> headers = null;
+            int rowCount = 0;
 
-                    ObjectMapper mapper = new ObjectMapper();
-                    Map<String, Object> rowData = mapper.readValue(jsonData, new TypeReference<>() {});
+            while (status == OperationStatus.SUCCESS && rowCount < pageSize) {
+                String key = KeyEncoding.keyToString(keyEntry.getData());
+                Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
 
-                    if (keyValue.toString().equals(rowData.get(foreignKeyColumn).toString())) {
-                        relatedDb.delete(null, keyEntry);
+                if (headers == null) {
+                    headers = buildHeaders(primaryKeyField, row, columns);
+                    rows.add(headers);
+                }
+                rows.add(buildRowData(key, row, headers));
+                rowCount++;
+
+                if (rowCount == pageSize) {
+                    byte[] lastKey = keyEntry.getData();
+                    // Проверяем, есть ли ещё строки, не читая само значение
+                    if (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                        nextToken = Base64.getUrlEncoder().withoutPadding().encodeToString(lastKey);
                     }
+                    break;
                 }
 
-                cursor.close();
-                relatedDb.close();
-                dbEnvironment.close();
+                status = cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT);
             }
-
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
         }
+
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("rows", rows);
+        page.put("nextToken", nextToken);
+        return page;
     }
 
-    private boolean updateRowInDatabase(File tableFolder, String columnName, Object newValue, Object keyValue) {
-        try {
-            EnvironmentConfig envConfig = new EnvironmentConfig();
-            envConfig.setAllowCreate(false);
-            Environment dbEnvironment = new Environment(tableFolder, envConfig);
+    // Строки, где значение колонки удовлетворяет условию. EQUALS и RANGE идут по упорядоченному
+    // индексу колонки, EQUALS по внешнему ключу - по его индексу; остальное проверяется при обходе
+    private List<List<Object>> searchTable(EnvironmentRegistry.TableHandle table, String columnName, Object value, Object upperValue,
+                                           SearchPredicate predicate, int limit, List<String> columns) {
+        List<List<Object>> result = new ArrayList<>();
+        // Колонка условия декодируется, даже если её не просили вернуть
+        Set<String> projection = getProjection(columns, columnName);
+        SecondaryDatabase sortIndex = table.getSortIndex(columnName);
+        SecondaryDatabase foreignKeyIndex = table.getIndex(columnName);
+        SearchPredicate.Operator operator = predicate.getOperator();
+
+        boolean byPrimaryKey = columnName.equals(singularize(table.getName()) + "_id") && !table.hasLegacyKeys();
+
+        if (byPrimaryKey && operator == SearchPredicate.Operator.EQUALS && value != null) {
+            searchKeyRange(table, value, value, limit, projection, columns, result);
+        } else if (byPrimaryKey && operator == SearchPredicate.Operator.RANGE) {
+            searchKeyRange(table, value, upperValue, limit, projection, columns, result);
+        } else if (operator == SearchPredicate.Operator.EQUALS && sortIndex != null) {
+            searchIndexKeys(table, sortIndex, predicate.getEqualKeys(), limit, projection, columns, result);
+        } else if (operator == SearchPredicate.Operator.EQUALS && foreignKeyIndex != null && value != null) {
+            searchIndexKeys(table, foreignKeyIndex, List.of(KeyEncoding.encodeKey(value)), limit, projection, columns, result);
+        } else if (operator == SearchPredicate.Operator.RANGE && sortIndex != null) {
+            searchIndexRange(table, sortIndex, predicate, limit, projection, columns, result);
+        } else {
+            try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                valueEntry.setPartial(0, 0, true);
 
-            DatabaseConfig dbConfig = new DatabaseConfig();
-            dbConfig.setAllowCreate(false);
-            Database berkeleyDb = dbEnvironment.openDatabase(null, tableFolder.getName(), dbConfig);
+                while (result.size() <= limit && cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    Map<String, Object> row = readRow(table, cursor, keyEntry.getData(), projection);
+                    if (predicate.matches(row.get(columnName))) {
+                        addSearchResult(table, keyEntry.getData(), row, columns, result);
+                    }
+                }
+            }
+        }
 
-            DatabaseEntry keyEntry = new DatabaseEntry(keyValue.toString().getBytes(StandardCharsets.UTF_8));
+        // Заголовки нужны клиенту и при пустом результате
+        if (result.isEmpty()) {
+            try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                if (cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                    result.add(buildHeaders(singularize(table.getName()) + "_id", table.getCodec().decode(valueEntry.getData()), columns));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void searchIndexKeys(EnvironmentRegistry.TableHandle table, SecondaryDatabase index, List<byte[]> indexKeys,
+                                 int limit, Set<String> projection, List<String> columns, List<List<Object>> result) {
+        try (SecondaryCursor cursor = index.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
             DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            for (byte[] indexKey : indexKeys) {
+                DatabaseEntry indexKeyEntry = new DatabaseEntry(indexKey);
+                OperationStatus status = cursor.getSearchKey(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
+                while (status == OperationStatus.SUCCESS && result.size() <= limit) {
+                    addSearchResult(table, keyEntry.getData(), readRow(table, cursor, keyEntry.getData(), projection), columns, result);
+                    status = cursor.getNextDup(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
+                }
+            }
+        }
+    }
 
-            if (berkeleyDb.get(null, keyEntry, valueEntry, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
-                System.err.println("Key not found: " + keyValue);
-                berkeleyDb.close();
-                dbEnvironment.close();
-                return false;
+    private void searchIndexRange(EnvironmentRegistry.TableHandle table, SecondaryDatabase index, SearchPredicate predicate,
+                                  int limit, Set<String> projection, List<String> columns, List<List<Object>> result) {
+        try (SecondaryCursor cursor = index.openCursor(null, null)) {
+            DatabaseEntry indexKeyEntry = new DatabaseEntry();
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            indexKeyEntry.setData(predicate.getLowerKey());
+            OperationStatus status = cursor.getSearchKeyRange(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
+
+            while (status == OperationStatus.SUCCESS && result.size() <= limit && !predicate.isAboveUpper(indexKeyEntry.getData())) {
+                addSearchResult(table, keyEntry.getData(), readRow(table, cursor, keyEntry.getData(), projection), columns, result);
+                status = cursor.getNext(indexKeyEntry, keyEntry, valueEntry, LockMode.DEFAULT);
             }
+        }
+    }
 
-            String serializedData = new String(valueEntry.getData(), StandardCharsets.UTF_8);
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, Object> rowData = mapper.readValue(serializedData, Map.class);
+    // Диапазон первичных ключей включительно; null - без границы с этой стороны
+    private void searchKeyRange(EnvironmentRegistry.TableHandle table, Object lowerValue, Object upperValue, int limit,
+                                Set<String> projection, List<String> columns, List<List<Object>> result) {
+        byte[] upperKey = upperValue != null ? table.encodeKey(upperValue) : null;
 
-            if (!rowData.containsKey(columnName)) {
-                System.err.println("Column not found: " + columnName);
-                berkeleyDb.close();
-                dbEnvironment.close();
-                return false;
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            OperationStatus status;
+            if (lowerValue != null) {
+                keyEntry.setData(table.encodeKey(lowerValue));
+                status = cursor.getSearchKeyRange(keyEntry, valueEntry, LockMode.DEFAULT);
+            } else {
+                status = cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT);
             }
 
-            if (newValue instanceof Date) {
-                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                newValue = dateFormat.format((Date) newValue);
+            while (status == OperationStatus.SUCCESS && result.size() <= limit
+                    && (upperKey == null || Arrays.compareUnsigned(keyEntry.getData(), upperKey) <= 0)) {
+                addSearchResult(table, keyEntry.getData(), readRow(table, cursor, keyEntry.getData(), projection), columns, result);
+                status = cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT);
             }
+        }
+    }
+
+    private void addSearchResult(EnvironmentRegistry.TableHandle table, byte[] key, Map<String, Object> row,
+                                 List<String> columns, List<List<Object>> result) {
+        if (result.isEmpty()) {
+            result.add(buildHeaders(singularize(table.getName()) + "_id", row, columns));
+        }
+        result.add(buildRowData(KeyEncoding.keyToString(key), row, result.get(0)));
+    }
 
-            rowData.put(columnName, newValue);
+    // Курсор читает только ключи; значение дочитывается с текущей позиции и декодируется
+    // лишь при промахе кэша. С проекцией декодируются только её колонки, и такая неполная
+    // строка в кэш не попадает
+    private Map<String, Object> readRow(EnvironmentRegistry.TableHandle table, Cursor cursor, byte[] key, Set<String> projection) {
+        Map<String, Object> row = rowCache.get(table.getName(), key);
+        if (row == null) {
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            cursor.getCurrent(new DatabaseEntry(), valueEntry, LockMode.DEFAULT);
+            row = projection == null
+                    ? cacheRow(table, key, valueEntry.getData())
+                    : table.getCodec().decode(valueEntry.getData(), projection);
+        }
+        return row;
+    }
 
-            String updatedSerializedData = mapper.writeValueAsString(rowData);
-            valueEntry.setData(updatedSerializedData.getBytes(StandardCharsets.UTF_8));
+    // Необязательный аргумент команды со списком колонок; null - все колонки
+    @SuppressWarnings("unchecked")
+    private static List<String> getColumnsArgument(List<Object> args, int index) {
+        return args.size() > index && args.get(index) != null ? (List<String>) args.get(index) : null;
+    }
 
-            if (berkeleyDb.put(null, keyEntry, valueEntry) != OperationStatus.SUCCESS) {
-                System.err.println("Failed to update key: " + keyValue);
-                berkeleyDb.close();
-                dbEnvironment.close();
-                return false;
+    // Колонки, которые нужно декодировать: запрошенные и та, по которой сортируют или ищут
+    private static Set<String> getProjection(List<String> columns, String requiredColumn) {
+        if (columns == null) {
+            return null;
+        }
+        Set<String> projection = new HashSet<>(columns);
+        if (requiredColumn != null) {
+            projection.add(requiredColumn);
+        }
+        return projection;
+    }
+
+    private Map<String, Object> cacheRow(EnvironmentRegistry.TableHandle table, byte[] key, byte[] value) {
+        Map<String, Object> row = table.getCodec().decode(value);
+        rowCache.put(table.getName(), key, row, value.length);
+        return row;
+    }
+
+    private List<Object> buildHeaders(String primaryKeyField, Map<String, Object> row, List<String> columns) {
+        List<Object> headers = new ArrayList<>();
+        headers.add(primaryKeyField);
+        // С проекцией колонки идут в запрошенном порядке
+        for (String column : columns != null ? columns : row.keySet()) {
+            if (!column.equals(primaryKeyField)) {
+                headers.add(column);
             }
+        }
+        return headers;
+    }
 
-            berkeleyDb.close();
-            dbEnvironment.close();
-            return true;
+    // Значения раскладываются по именам заголовков, а не по порядку полей в строке:
+    // строки, добавленные через ADD_ROW, хранят колонки в другом порядке
+    private List<Object> buildRowData(String key, Map<String, Object> row, List<Object> headers) {
+        List<Object> rowData = new ArrayList<>(headers.size());
+        rowData.add(key);
+        for (int i = 1; i < headers.size(); i++) {
+            rowData.add(row.get(headers.get(i)));
+        }
+        return rowData;
+    }
 
+    private boolean addRowToDatabase(EnvironmentRegistry.TableHandle table, Map<String, Object> rowData) {
+        try {
+            String primaryKey = String.valueOf(keyAllocator.nextKey(table.getName()));
+
+            DatabaseEntry keyEntry = new DatabaseEntry(table.encodeKey(primaryKey));
+            DatabaseEntry valueEntry = new DatabaseEntry(table.getCodec().encode(rowData));
+            table.getDatabase().put(null, keyEntry, valueEntry);
+            cacheRow(table, keyEntry.getData(), valueEntry.getData());
+
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
             return false;
         }
     }
 
-    private List<Object> getPrimaryKeyValues(File tableFolder) {
-        List<Object> primaryKeyValues = new ArrayList<>();
+    // Пакетная вставка: ключи выделяются одним блоком, строки кодируются до взятия блокировки,
+    // а пишутся одной транзакцией с одной фиксацией (один сброс лога на весь пакет).
+    // Возвращает выданные ключи в порядке строк; при ошибке не вставляется ничего
+    private List<String> addRowsToDatabase(EnvironmentRegistry.TableHandle table, List<Map<String, Object>> rows) throws Exception {
+        List<String> keys = new ArrayList<>(rows.size());
+        if (rows.isEmpty()) {
+            return keys;
+        }
+
+        long firstKey = keyAllocator.allocate(table.getName(), rows.size());
+        List<byte[]> values = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            keys.add(String.valueOf(firstKey + keys.size()));
+            values.add(table.getCodec().encode(row));
+        }
 
+        return withWriteLock(table.getName(), () -> {
+            Transaction txn = table.getEnvironment().beginTransaction(null, null);
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    DatabaseEntry keyEntry = new DatabaseEntry(table.encodeKey(keys.get(i)));
+                    table.getDatabase().put(txn, keyEntry, new DatabaseEntry(values.get(i)));
+                }
+                txn.commit();
+                return keys;
+            } finally {
+                if (txn.getState() == Transaction.State.OPEN) {
+                    txn.abort();
+                }
+            }
+        });
+    }
+
+    // Каскадное удаление по всему графу внешних ключей
+    // (clients/accommodations/excursions -> tours -> tour_bookings).
+    // Возвращает число удалённых строк по таблицам или null, если строки нет.
+    // Атомарно только в общем окружении (StorageLayoutMigrator или экспорт с
+    // -Dexporter.layout=shared, см. EnvironmentRegistry): там одна транзакция на всё.
+    // При таблице на окружение транзакций несколько, и сбой между их фиксациями оставляет
+    // удаление частично применённым. Фиксации идут от ссылающихся таблиц к родителю, а удаляемая
+    // строка фиксируется последней: осиротевших строк не бывает, и повторный DELETE той же
+    // строки доудаляет то, что осталось
+    private Map<String, Integer> deleteRowWithCascade(EnvironmentRegistry.TableHandle table, Object keyValue) throws Exception {
+        // Блокируем все затрагиваемые таблицы в алфавитном порядке, чтобы не было взаимоблокировок
+        Set<String> lockedTables = new TreeSet<>();
+        List<String> commitOrder = new ArrayList<>();
+        collectCascadeTables(table.getName(), lockedTables, commitOrder);
+        List<Lock> writeLocks = new ArrayList<>();
+        for (String lockedTable : lockedTables) {
+            Lock writeLock = registry.getLock(lockedTable).writeLock();
+            writeLock.lock();
+            writeLocks.add(writeLock);
+        }
+
+        // Транзакции в JE не выходят за пределы одного Environment, поэтому на каждое окружение
+        // открывается своя транзакция; все фиксируются вместе после того, как удалено всё
+        Map<Environment, Transaction> transactions = new LinkedHashMap<>();
         try {
-            EnvironmentConfig envConfig = new EnvironmentConfig();
-            envConfig.setAllowCreate(false);
-            Environment dbEnvironment = new Environment(tableFolder, envConfig);
+            Transaction txn = getTransaction(table, transactions);
+            DatabaseEntry keyEntry = new DatabaseEntry(table.encodeKey(keyValue));
+            if (table.getDatabase().delete(txn, keyEntry) != OperationStatus.SUCCESS) {
+                return null;
+            }
+            // Инвалидация безопасна и при откате: строка просто будет прочитана заново.
+            // Читатели заблокированы до конца транзакции, поэтому старую версию в кэш не вернут
+            rowCache.invalidate(table.getName(), keyEntry.getData());
+
+            Map<String, Integer> deletedRows = new LinkedHashMap<>();
+            deletedRows.put(table.getName(), 1);
+            deleteReferencingRows(table.getName(), keyValue.toString(), transactions, deletedRows);
+
+            // Сначала фиксируются дочерние таблицы: при сбое между фиксациями
+            // останется родитель без части детей, но не осиротевшие строки
+            for (String committedTable : commitOrder) {
+                EnvironmentRegistry.TableHandle committed = registry.getTable(committedTable);
+                Transaction transaction = committed != null ? transactions.get(committed.getEnvironment()) : null;
+                if (transaction != null && transaction.getState() == Transaction.State.OPEN) {
+                    transaction.commit();
+                }
+            }
+            for (Transaction transaction : transactions.values()) {
+                if (transaction.getState() == Transaction.State.OPEN) {
+                    transaction.commit();
+                }
+            }
+            return deletedRows;
+        } finally {
+            for (Transaction transaction : transactions.values()) {
+                if (transaction.getState() == Transaction.State.OPEN) {
+                    transaction.abort();
+                }
+            }
+            for (String lockedTable : lockedTables) {
+                resultCache.bumpVersion(lockedTable);
+            }
+            for (Lock writeLock : writeLocks) {
+                writeLock.unlock();
+            }
+        }
+    }
 
-            DatabaseConfig dbConfig = new DatabaseConfig();
-            dbConfig.setAllowCreate(false);
-            Database berkeleyDb = dbEnvironment.openDatabase(null, tableFolder.getName(), dbConfig);
+    // commitOrder - порядок завершения обхода: таблица идёт после всех таблиц, которые на неё ссылаются
+    private void collectCascadeTables(String tableName, Set<String> tables, List<String> commitOrder) {
+        if (tables.add(tableName)) {
+            for (String relatedTableName : ForeignKeys.getReferencingTables(tableName).keySet()) {
+                collectCascadeTables(relatedTableName, tables, commitOrder);
+            }
+            commitOrder.add(tableName);
+        }
+    }
 
-            CursorConfig cursorConfig = new CursorConfig();
-            Cursor cursor = berkeleyDb.openCursor(null, cursorConfig);
+    private Transaction getTransaction(EnvironmentRegistry.TableHandle table, Map<Environment, Transaction> transactions) {
+        return transactions.computeIfAbsent(table.getEnvironment(), environment -> environment.beginTransaction(null, null));
+    }
 
-            DatabaseEntry keyEntry = new DatabaseEntry();
-            DatabaseEntry valueEntry = new DatabaseEntry();
+    private void deleteReferencingRows(String tableName, String keyValue, Map<Environment, Transaction> transactions,
+                                       Map<String, Integer> deletedRows) {
+        DatabaseEntry foreignKeyEntry = new DatabaseEntry(KeyEncoding.encodeKey(keyValue));
 
-            while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-                String key = new String(keyEntry.getData(), StandardCharsets.UTF_8);
-                primaryKeyValues.add(key);
+        for (Map.Entry<String, String> entry : ForeignKeys.getReferencingTables(tableName).entrySet()) {
+            String relatedTableName = entry.getKey();
+            String foreignKeyColumn = entry.getValue();
+
+            EnvironmentRegistry.TableHandle relatedTable = registry.getTable(relatedTableName);
+            if (relatedTable == null) {
+                System.err.println("Related table not found: " + relatedTableName);
+                continue;
             }
+            Transaction txn = getTransaction(relatedTable, transactions);
 
-            cursor.close();
-            berkeleyDb.close();
-            dbEnvironment.close();
+            // Идём по индексу внешнего ключа: читаются только ссылающиеся строки
+            List<String> deletedKeys = new ArrayList<>();
+            try (SecondaryCursor cursor = relatedTable.getIndex(foreignKeyColumn).openCursor(txn, null)) {
+                DatabaseEntry searchKey = new DatabaseEntry(foreignKeyEntry.getData());
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                valueEntry.setPartial(0, 0, true);
+
+                OperationStatus status = cursor.getSearchKey(searchKey, keyEntry, valueEntry, LockMode.RMW);
+                while (status == OperationStatus.SUCCESS) {
+                    cursor.delete();
+                    rowCache.invalidate(relatedTableName, keyEntry.getData());
+                    deletedKeys.add(KeyEncoding.keyToString(keyEntry.getData()));
+                    status = cursor.getNextDup(searchKey, keyEntry, valueEntry, LockMode.RMW);
+                }
+            }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            deletedRows.merge(relatedTableName, deletedKeys.size(), Integer::sum);
+            for (String deletedKey : deletedKeys) {
+                deleteReferencingRows(relatedTableName, deletedKey, transactions, deletedRows);
+            }
         }
+    }
 
-        return primaryKeyValues;
+    private boolean updateRowInDatabase(EnvironmentRegistry.TableHandle table, String columnName, Object newValue, Object keyValue) throws Exception {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put(columnName, newValue);
+
+        Map<String, Object> result = patchRowInDatabase(table, keyValue, patch, null);
+        if (!"SUCCESS".equals(result.get("status"))) {
+            System.err.println("Failed to update " + columnName + " of key " + keyValue + ": " + result.get("status"));
+            return false;
+        }
+        return true;
     }
 
-    private synchronized String generatePrimaryKey(String tableName) throws IOException {
-        File keyFile = new File("primary_keys.txt");
-        Map<String, Long> keyMap = new HashMap<>();
+    // Изменение нескольких колонок строки одной транзакцией. Версия строки - CRC32 сохранённых
+    // байтов (её отдаёт GET_ROW); если строка изменилась после чтения клиентом, возвращается
+    // CONFLICT с текущими версией и строкой, и клиент сам решает, как объединить правки
+    private Map<String, Object> patchRowInDatabase(EnvironmentRegistry.TableHandle table, Object keyValue,
+                                                   Map<String, Object> patch, Long expectedVersion) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        String primaryKeyField = singularize(table.getName()) + "_id";
+        RowCodec codec = table.getCodec();
 
-        if (keyFile.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(keyFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    keyMap.put(parts[0], Long.parseLong(parts[1].trim()));
+        Transaction txn = table.getEnvironment().beginTransaction(null, null);
+        try {
+            DatabaseEntry keyEntry = new DatabaseEntry(table.encodeKey(keyValue));
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            if (table.getDatabase().get(txn, keyEntry, valueEntry, LockMode.RMW) != OperationStatus.SUCCESS) {
+                result.put("status", "NOT_FOUND");
+                return result;
+            }
+
+            long version = getRowVersion(valueEntry.getData());
+            Map<String, Object> rowData = new LinkedHashMap<>(codec.decode(valueEntry.getData()));
+            if (expectedVersion != null && expectedVersion != version) {
+                result.put("status", "CONFLICT");
+                result.put("version", version);
+                result.put("row", rowData);
+                return result;
+            }
+
+            for (String columnName : patch.keySet()) {
+                if (columnName.equals(primaryKeyField) || !rowData.containsKey(columnName)) {
+                    result.put("status", "UNKNOWN_COLUMN");
+                    result.put("column", columnName);
+                    return result;
                 }
             }
+
+            rowData.putAll(patch);
+            byte[] updatedData = codec.encode(rowData);
+            table.getDatabase().put(txn, keyEntry, new DatabaseEntry(updatedData));
+            txn.commit();
+
+            // В кэш кладётся то, что реально сохранено (после приведения типов кодеком)
+            cacheRow(table, keyEntry.getData(), updatedData);
+            result.put("status", "SUCCESS");
+            result.put("version", getRowVersion(updatedData));
+            return result;
+        } finally {
+            if (txn.getState() == Transaction.State.OPEN) {
+                txn.abort();
+            }
+        }
+    }
+
+    private Object getRowWithVersion(EnvironmentRegistry.TableHandle table, Object keyValue) {
+        DatabaseEntry keyEntry = new DatabaseEntry(table.encodeKey(keyValue));
+        DatabaseEntry valueEntry = new DatabaseEntry();
+        if (table.getDatabase().get(null, keyEntry, valueEntry, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+            return "NOT_FOUND";
         }
 
-        String keyName = singularize(tableName) + "_id";
-        long nextId = keyMap.getOrDefault(keyName, 0L) + 1;
-        keyMap.put(keyName, nextId);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("row", table.getCodec().decode(valueEntry.getData()));
+        result.put("version", getRowVersion(valueEntry.getData()));
+        return result;
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(keyFile))) {
-            for (Map.Entry<String, Long> entry : keyMap.entrySet()) {
-                writer.write(entry.getKey() + ":" + entry.getValue());
-                writer.newLine();
+    private static long getRowVersion(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private List<Object> getPrimaryKeyValues(EnvironmentRegistry.TableHandle table) {
+        List<Object> primaryKeyValues = new ArrayList<>();
+
+        try (Cursor cursor = table.getDatabase().openCursor(null, new CursorConfig())) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            // Нужны только ключи, значения строк не читаются
+            valueEntry.setPartial(0, 0, true);
+
+            while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                String key = KeyEncoding.keyToString(keyEntry.getData());
+                primaryKeyValues.add(key);
             }
+
+        } catch (Exception e) {
+            e.printStackTrace();
         }
 
-        return String.valueOf(nextId);
+        return primaryKeyValues;
     }
 
     public static void main(String[] args) {
         try {
             DatabaseServer server = new DatabaseServer();
             server.startServer();
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             e.printStackTrace();
         }
     }
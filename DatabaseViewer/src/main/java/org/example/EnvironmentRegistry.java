@@ -0,0 +1,416 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Держит открытыми Environment/Database каждой таблицы на всё время работы сервера.
+// Поддерживаются два размещения: по окружению на таблицу (berkeley_db/<таблица>) и одно общее
+// окружение прямо в berkeley_db, где у каждой таблицы своя именованная база. Размещение
+// определяется по файлам журнала (*.jdb) в корне папки. В обоих случаях у всех таблиц общий кэш JE
+public class EnvironmentRegistry implements AutoCloseable {
+    private static final int CACHE_PERCENT = Integer.getInteger("server.jeCachePercent", 60);
+
+    private final File berkeleyDbFolder;
+    private final boolean sharedLayout;
+    private final Map<String, Map<String, String>> schema;
+    private final Map<String, List<String>> orderedIndexes;
+    private final ConcurrentHashMap<String, TableHandle> handles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private Environment sharedEnvironment;
+
+    public EnvironmentRegistry(File berkeleyDbFolder) {
+        this.berkeleyDbFolder = berkeleyDbFolder;
+        this.sharedLayout = isSharedLayout(berkeleyDbFolder);
+        File configFolder = berkeleyDbFolder.getAbsoluteFile().getParentFile();
+        this.schema = RowCodec.loadSchema(new File(configFolder, "schema.json"));
+        this.orderedIndexes = OrderedIndexes.load(new File(configFolder, "indexes.txt"));
+    }
+
+    public File getBerkeleyDbFolder() {
+        return berkeleyDbFolder;
+    }
+
+    public boolean isSharedLayout() {
+        return sharedLayout;
+    }
+
+    // Общее окружение - это файлы журнала прямо в папке, а не в подпапках таблиц
+    public static boolean isSharedLayout(File berkeleyDbFolder) {
+        File[] logFiles = berkeleyDbFolder.listFiles((folder, name) -> name.endsWith(".jdb"));
+        return logFiles != null && logFiles.length > 0;
+    }
+
+    // Таблицы общего окружения: служебные базы (индексы, словари колонок) называются "<таблица>.<...>"
+    public static List<String> getTableNames(Environment environment) {
+        List<String> tableNames = new ArrayList<>();
+        for (String databaseName : environment.getDatabaseNames()) {
+            if (!databaseName.contains(".")) {
+                tableNames.add(databaseName);
+            }
+        }
+        return tableNames;
+    }
+
+    public List<String> getTableNames() {
+        if (sharedLayout) {
+            return getTableNames(getSharedEnvironment());
+        }
+
+        List<String> tableNames = new ArrayList<>();
+        File[] tableFolders = berkeleyDbFolder.listFiles(File::isDirectory);
+        if (tableFolders != null) {
+            for (File tableFolder : tableFolders) {
+                tableNames.add(tableFolder.getName());
+            }
+        }
+        return tableNames;
+    }
+
+    public TableHandle getTable(String tableName) {
+        if (closed) {
+            throw new IllegalStateException("Registry is closed");
+        }
+
+        TableHandle handle = handles.get(tableName);
+        if (handle != null && handle.isValid()) {
+            return handle;
+        }
+
+        Environment environment;
+        if (sharedLayout) {
+            environment = getSharedEnvironment();
+            if (!environment.getDatabaseNames().contains(tableName)) {
+                return null;
+            }
+        } else {
+            environment = null;
+            File tableFolder = new File(berkeleyDbFolder, tableName);
+            if (!tableFolder.exists() || !tableFolder.isDirectory()) {
+                return null;
+            }
+        }
+
+        return handles.compute(tableName, (name, current) -> {
+            if (current != null && current.isValid()) {
+                return current;
+            }
+            if (current != null) {
+                System.err.println("Reopening invalid environment for table: " + name);
+                current.closeQuietly();
+            }
+            return environment != null
+                    ? open(environment, false, name)
+                    : open(openEnvironment(new File(berkeleyDbFolder, name)), true, name);
+        });
+    }
+
+    // Статистика JE уже открытых окружений: общего или окружений открытых таблиц
+    public Map<String, EnvironmentStats> getEnvironmentStats(StatsConfig config) {
+        Map<String, EnvironmentStats> stats = new TreeMap<>();
+        if (sharedLayout) {
+            synchronized (this) {
+                if (sharedEnvironment != null && sharedEnvironment.isValid()) {
+                    stats.put("shared", sharedEnvironment.getStats(config));
+                }
+            }
+            return stats;
+        }
+
+        for (TableHandle handle : handles.values()) {
+            try {
+                if (handle.isValid()) {
+                    stats.put(handle.getName(), handle.getEnvironment().getStats(config));
+                }
+            } catch (IllegalStateException e) {
+                // Окружение закрыли между проверкой и чтением статистики
+            }
+        }
+        return stats;
+    }
+
+    // Чтения таблицы идут параллельно, записи (read-modify-write, каскады) - эксклюзивно
+    public ReadWriteLock getLock(String tableName) {
+        return locks.computeIfAbsent(tableName, name -> new ReentrantReadWriteLock());
+    }
+
+    // Окружение открывается заново, если стало недействительным после ошибки JE;
+    // таблицы старого окружения переоткрываются при следующем обращении (handle.isValid())
+    private synchronized Environment getSharedEnvironment() {
+        if (sharedEnvironment == null || !sharedEnvironment.isValid()) {
+            if (sharedEnvironment != null) {
+                System.err.println("Reopening invalid shared environment");
+                try {
+                    sharedEnvironment.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            sharedEnvironment = openEnvironment(berkeleyDbFolder);
+        }
+        return sharedEnvironment;
+    }
+
+    // С общим кэшем все окружения процесса делят один бюджет памяти JE
+    private static Environment openEnvironment(File folder) {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(false);
+        envConfig.setTransactional(true);
+        envConfig.setSharedCache(true);
+        envConfig.setCachePercent(CACHE_PERCENT);
+        return new Environment(folder, envConfig);
+    }
+
+    private TableHandle open(Environment dbEnvironment, boolean ownsEnvironment, String tableName) {
+        Database berkeleyDb = null;
+        RowCodec codec = null;
+        Map<String, SecondaryDatabase> indexes = new LinkedHashMap<>();
+        Map<String, SecondaryDatabase> sortIndexes = new LinkedHashMap<>();
+        try {
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(false);
+            dbConfig.setTransactional(true);
+            berkeleyDb = dbEnvironment.openDatabase(null, tableName, dbConfig);
+            codec = RowCodec.open(dbEnvironment, tableName, schema.getOrDefault(tableName, Collections.emptyMap()));
+
+            // Индексы по внешним ключам; при первом открытии JE заполняет их из основной базы,
+            // дальше они обновляются автоматически при каждой записи через berkeleyDb
+            for (String column : ForeignKeys.getForeignKeyColumns(tableName).keySet()) {
+                indexes.put(column, openIndex(dbEnvironment, berkeleyDb, codec, tableName, column));
+            }
+
+            // Упорядоченные индексы из indexes.txt. Индекс, убранный из файла, удаляется:
+            // пока он закрыт, записи его не обновляют, и при повторном объявлении он был бы устаревшим
+            List<String> sortColumns = orderedIndexes.getOrDefault(tableName, Collections.emptyList());
+            for (String databaseName : dbEnvironment.getDatabaseNames()) {
+                if (databaseName.startsWith(tableName + ".") && databaseName.endsWith(".ordered")
+                        && sortColumns.stream().noneMatch(column -> OrderedIndexes.getIndexName(tableName, column).equals(databaseName))) {
+                    dbEnvironment.removeDatabase(null, databaseName);
+                }
+            }
+            for (String column : sortColumns) {
+                sortIndexes.put(column, openSortIndex(dbEnvironment, berkeleyDb, codec, tableName, column));
+            }
+
+            return new TableHandle(tableName, dbEnvironment, ownsEnvironment, berkeleyDb, hasLegacyKeys(berkeleyDb),
+                    codec, indexes, sortIndexes);
+        } catch (RuntimeException e) {
+            for (SecondaryDatabase index : sortIndexes.values()) {
+                index.close();
+            }
+            for (SecondaryDatabase index : indexes.values()) {
+                index.close();
+            }
+            if (codec != null) {
+                codec.close();
+            }
+            if (berkeleyDb != null) {
+                berkeleyDb.close();
+            }
+            if (ownsEnvironment) {
+                dbEnvironment.close();
+            }
+            throw e;
+        }
+    }
+
+    private SecondaryDatabase openIndex(Environment dbEnvironment, Database berkeleyDb, RowCodec codec, String tableName, String column) {
+        SecondaryConfig indexConfig = new SecondaryConfig();
+        indexConfig.setAllowCreate(true);
+        indexConfig.setTransactional(true);
+        indexConfig.setAllowPopulate(true);
+        indexConfig.setSortedDuplicates(true);
+        indexConfig.setKeyCreator(new ColumnKeyCreator(codec, column));
+        return dbEnvironment.openSecondaryDatabase(null, ForeignKeys.getIndexName(tableName, column), berkeleyDb, indexConfig);
+    }
+
+    private SecondaryDatabase openSortIndex(Environment dbEnvironment, Database berkeleyDb, RowCodec codec, String tableName, String column) {
+        SecondaryConfig indexConfig = new SecondaryConfig();
+        indexConfig.setAllowCreate(true);
+        indexConfig.setTransactional(true);
+        indexConfig.setAllowPopulate(true);
+        indexConfig.setSortedDuplicates(true);
+        indexConfig.setKeyCreator(new SortKeyCreator(codec, column));
+        return dbEnvironment.openSecondaryDatabase(null, OrderedIndexes.getIndexName(tableName, column), berkeleyDb, indexConfig);
+    }
+
+    // Индексы по внешним ключам и упорядоченные индексы: удалённый индекс open заполнит заново из таблицы
+    public static boolean isIndexName(String tableName, String databaseName) {
+        if (databaseName.startsWith(tableName + ".") && databaseName.endsWith(".ordered")) {
+            return true;
+        }
+        for (String column : ForeignKeys.getForeignKeyColumns(tableName).keySet()) {
+            if (databaseName.equals(ForeignKeys.getIndexName(tableName, column))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Формат ключей таблицы по первому ключу (см. KeyEncoding.isLegacyKey); пустая таблица - новый формат
+    public static boolean hasLegacyKeys(Database database) {
+        try (Cursor cursor = database.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+            return cursor.getFirst(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS
+                    && KeyEncoding.isLegacyKey(keyEntry.getData());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (TableHandle handle : handles.values()) {
+            handle.closeQuietly();
+        }
+        handles.clear();
+        synchronized (this) {
+            if (sharedEnvironment != null) {
+                try {
+                    sharedEnvironment.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                sharedEnvironment = null;
+            }
+        }
+    }
+
+    private static class ColumnKeyCreator implements SecondaryKeyCreator {
+        private final RowCodec codec;
+        private final String column;
+
+        ColumnKeyCreator(RowCodec codec, String column) {
+            this.codec = codec;
+            this.column = column;
+        }
+
+        @Override
+        public boolean createSecondaryKey(SecondaryDatabase secondary, DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+            Map<String, Object> row = codec.decode(data.getData(), data.getOffset(), data.getSize(), Set.of(column));
+
+            Object value = row.get(column);
+            if (value == null) {
+                return false;
+            }
+            result.setData(KeyEncoding.encodeKey(value));
+            return true;
+        }
+    }
+
+    // В отличие от индекса внешнего ключа сюда попадают все строки, включая null:
+    // обход индекса должен вернуть таблицу целиком. Числа сравниваются точно, как десятичные
+    private static class SortKeyCreator implements SecondaryKeyCreator {
+        private final RowCodec codec;
+        private final String column;
+
+        SortKeyCreator(RowCodec codec, String column) {
+            this.codec = codec;
+            this.column = column;
+        }
+
+        @Override
+        public boolean createSecondaryKey(SecondaryDatabase secondary, DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+            Map<String, Object> row = codec.decode(data.getData(), data.getOffset(), data.getSize(), Set.of(column));
+            result.setData(KeyEncoding.encodeValue(row.get(column)));
+            return true;
+        }
+    }
+
+    public static class TableHandle {
+        private final String name;
+        private final Environment environment;
+        private final boolean ownsEnvironment;
+        private final Database database;
+        private final boolean legacyKeys;
+        private final RowCodec codec;
+        private final Map<String, SecondaryDatabase> indexes;
+        private final Map<String, SecondaryDatabase> sortIndexes;
+
+        TableHandle(String name, Environment environment, boolean ownsEnvironment, Database database, boolean legacyKeys,
+                    RowCodec codec, Map<String, SecondaryDatabase> indexes, Map<String, SecondaryDatabase> sortIndexes) {
+            this.name = name;
+            this.environment = environment;
+            this.ownsEnvironment = ownsEnvironment;
+            this.database = database;
+            this.legacyKeys = legacyKeys;
+            this.codec = codec;
+            this.indexes = indexes;
+            this.sortIndexes = sortIndexes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Environment getEnvironment() {
+            return environment;
+        }
+
+        public Database getDatabase() {
+            return database;
+        }
+
+        // Таблица до KeyEncodingMigrator продолжает работать со строковыми ключами
+        public byte[] encodeKey(Object value) {
+            return KeyEncoding.encodePrimaryKey(value, legacyKeys);
+        }
+
+        public boolean hasLegacyKeys() {
+            return legacyKeys;
+        }
+
+        public RowCodec getCodec() {
+            return codec;
+        }
+
+        public SecondaryDatabase getIndex(String column) {
+            return indexes.get(column);
+        }
+
+        public SecondaryDatabase getSortIndex(String column) {
+            return sortIndexes.get(column);
+        }
+
+        boolean isValid() {
+            return environment.isValid();
+        }
+
+        void closeQuietly() {
+            // Вторичные базы закрываются раньше основной
+            List<SecondaryDatabase> secondaries = new ArrayList<>(indexes.values());
+            secondaries.addAll(sortIndexes.values());
+            for (SecondaryDatabase index : secondaries) {
+                try {
+                    index.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                codec.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            try {
+                database.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            // Общее окружение закрывает реестр
+            if (ownsEnvironment) {
+                try {
+                    environment.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.example;
+
+import java.util.*;
+
+// Связи между таблицами: дочерняя таблица -> (колонка внешнего ключа -> родительская таблица)
+public final class ForeignKeys {
+    private static final Map<String, Map<String, String>> REFERENCES = new HashMap<>();
+
+    static {
+        addReference("tour_bookings", "client_id", "clients");
+        addReference("tour_bookings", "tour_id", "tours");
+        addReference("tours", "accommodation_id", "accommodations");
+        addReference("tours", "excursion_id", "excursions");
+    }
+
+    private ForeignKeys() {
+    }
+
+    private static void addReference(String childTable, String foreignKeyColumn, String parentTable) {
+        REFERENCES.computeIfAbsent(childTable, table -> new LinkedHashMap<>()).put(foreignKeyColumn, parentTable);
+    }
+
+    // Таблицы, ссылающиеся на tableName: дочерняя таблица -> колонка внешнего ключа
+    public static Map<String, String> getReferencingTables(String tableName) {
+        Map<String, String> references = new TreeMap<>();
+        for (Map.Entry<String, Map<String, String>> child : REFERENCES.entrySet()) {
+            for (Map.Entry<String, String> column : child.getValue().entrySet()) {
+                if (column.getValue().equals(tableName)) {
+                    references.put(child.getKey(), column.getKey());
+                }
+            }
+        }
+        return references;
+    }
+
+    // Внешние ключи таблицы: колонка -> родительская таблица
+    public static Map<String, String> getForeignKeyColumns(String tableName) {
+        return REFERENCES.getOrDefault(tableName, Collections.emptyMap());
+    }
+
+    public static String getIndexName(String tableName, String column) {
+        return tableName + "." + column;
+    }
+}
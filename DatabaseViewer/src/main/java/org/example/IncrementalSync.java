@@ -0,0 +1,299 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.*;
+
+// Инкрементальная синхронизация из PostgreSQL вместо полного повторного экспорта.
+// Для каждой строки в базе "<таблица>.sync" хранится хэш её закодированного значения; строки
+// из PostgreSQL читаются в порядке ключей и сливаются с этой базой: новых ключей - вставки,
+// изменившихся хэшей - обновления, ключей, которых больше нет в PostgreSQL, - удаления.
+// Если в таблице есть колонка sync.updatedAtColumn (по умолчанию updated_at), читаются только
+// строки, изменённые с прошлого запуска (метка хранится в "<таблица>.watermark"), а удаления
+// ищутся по одним ключам. Данные и состояние синхронизации пишутся в одной транзакции JE,
+// поэтому после сбоя достаточно перезапустить синхронизацию.
+// Индексы обновляются вместе с данными: таблицы открываются через EnvironmentRegistry.
+// Строки читаются через SyncSource; запросы к PostgreSQL - в JdbcSyncSource.
+// Запуск при остановленном сервере после первого экспорта: IncrementalSync [папка berkeley_db]
+// Соединение задаётся -Dsync.url, по умолчанию тот же PostgreSQL, что и у экспорта.
+public class IncrementalSync {
+    private static final String URL = System.getProperty("sync.url", "jdbc:postgresql://localhost:5432/Travel+agency?user=nina");
+    private static final String UPDATED_AT_COLUMN = System.getProperty("sync.updatedAtColumn", "updated_at");
+    private static final int FETCH_SIZE = Integer.getInteger("sync.fetchSize", 1000);
+    private static final int BATCH_SIZE = Integer.getInteger("sync.batchSize", 1000);
+    private static final int DIGEST_LENGTH = 16;
+    // Хэш строки, которая была в Berkeley DB до первой синхронизации: совпасть ни с чем не может
+    private static final byte[] UNKNOWN_DIGEST = new byte[DIGEST_LENGTH];
+    private static final byte[] WATERMARK_KEY = UPDATED_AT_COLUMN.getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) {
+        File berkeleyDbFolder = new File(args.length > 0 ? args[0] : "berkeley_db");
+        Map<String, Map<String, String>> schema = RowCodec.loadSchema(
+                new File(berkeleyDbFolder.getAbsoluteFile().getParentFile(), "schema.json"));
+
+        try (EnvironmentRegistry registry = new EnvironmentRegistry(berkeleyDbFolder);
+             Connection conn = DriverManager.getConnection(URL)) {
+            // Курсор с fetchSize работает только внутри транзакции
+            conn.setAutoCommit(false);
+            SyncSource source = new JdbcSyncSource(conn, FETCH_SIZE);
+
+            for (String tableName : registry.getTableNames()) {
+                try {
+                    syncTable(source, registry.getTable(tableName), schema.getOrDefault(tableName, Collections.emptyMap()), BATCH_SIZE);
+                } catch (Exception e) {
+                    System.err.println("Failed to sync table " + tableName);
+                    e.printStackTrace();
+                } finally {
+                    conn.rollback();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Возвращает число вставленных, обновлённых, удалённых и неизменных строк или null, если таблица пропущена
+    static Map<String, Long> syncTable(SyncSource source, EnvironmentRegistry.TableHandle table, Map<String, String> columnTypes,
+                                       int batchSize) throws Exception {
+        String tableName = table.getName();
+        String primaryKey = source.getPrimaryKey(tableName);
+        if (primaryKey == null) {
+            System.out.println("Skipping table " + tableName + " (no primary key found)");
+            return null;
+        }
+
+        long start = System.nanoTime();
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        Environment environment = table.getEnvironment();
+
+        try (Database syncDb = environment.openDatabase(null, tableName + ".sync", dbConfig);
+             Database watermarkDb = environment.openDatabase(null, tableName + ".watermark", dbConfig)) {
+            TableSync sync = new TableSync(table, syncDb, primaryKey, batchSize);
+            boolean useWatermark = columnTypes.containsKey(UPDATED_AT_COLUMN);
+            try {
+                if (syncDb.count() == 0) {
+                    sync.seedFromTable();
+                }
+
+                if (useWatermark) {
+                    String watermark = readWatermark(watermarkDb);
+                    String newWatermark = sync.upsertChangedRows(source, watermark);
+                    sync.mergeKeys(source, false);
+                    if (newWatermark != null) {
+                        sync.writeWatermark(watermarkDb, newWatermark);
+                    }
+                } else {
+                    sync.mergeKeys(source, true);
+                }
+                sync.finish();
+            } finally {
+                sync.abort();
+            }
+
+            System.out.printf("%s: %d inserted, %d updated, %d deleted, %d unchanged in %.1f s (%s)%n",
+                    tableName, sync.inserted, sync.updated, sync.deleted, sync.unchanged,
+                    (System.nanoTime() - start) / 1e9, useWatermark ? UPDATED_AT_COLUMN + " watermark" : "row hashes");
+
+            Map<String, Long> counts = new LinkedHashMap<>();
+            counts.put("inserted", sync.inserted);
+            counts.put("updated", sync.updated);
+            counts.put("deleted", sync.deleted);
+            counts.put("unchanged", sync.unchanged);
+            return counts;
+        }
+    }
+
+    static String readWatermark(Database watermarkDb) {
+        DatabaseEntry valueEntry = new DatabaseEntry();
+        if (watermarkDb.get(null, new DatabaseEntry(WATERMARK_KEY), valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+            return new String(valueEntry.getData(), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    // Изменения одной таблицы, транзакциями по batchSize: запись строки и её хэша фиксируются вместе
+    private static class TableSync {
+        private final EnvironmentRegistry.TableHandle table;
+        private final Database syncDb;
+        private final String primaryKey;
+        private final String primaryKeyField;
+        private final MessageDigest digest;
+        private final int batchSize;
+
+        private Transaction txn;
+        private int batched;
+        private long inserted;
+        private long updated;
+        private long deleted;
+        private long unchanged;
+
+        TableSync(EnvironmentRegistry.TableHandle table, Database syncDb, String primaryKey, int batchSize) throws NoSuchAlgorithmException {
+            this.table = table;
+            this.syncDb = syncDb;
+            this.primaryKey = primaryKey;
+            this.primaryKeyField = DatabaseExporter.singularize(table.getName()) + "_id";
+            this.digest = MessageDigest.getInstance("SHA-256");
+            this.batchSize = batchSize;
+        }
+
+        // Первый запуск после полного экспорта: все строки таблицы считаются изменёнными,
+        // зато строки, удалённые в PostgreSQL после экспорта, тоже будут найдены
+        void seedFromTable() {
+            try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                valueEntry.setPartial(0, 0, true);
+                while (cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+                    byte[] key = KeyEncoding.keyToString(keyEntry.getData()).getBytes(StandardCharsets.UTF_8);
+                    syncDb.put(transaction(), new DatabaseEntry(key), new DatabaseEntry(UNKNOWN_DIGEST));
+                    commitIfFull();
+                }
+            }
+        }
+
+        // Все строки (withRows) или только ключи в порядке байтов UTF-8 - в том же, что и ключи
+        // базы "<таблица>.sync", поэтому слияние идёт одним проходом без списка ключей в памяти
+        void mergeKeys(SyncSource source, boolean withRows) throws Exception {
+            // Чтение без блокировок: курсор идёт только вперёд, а изменения этого прохода
+            // касаются ключей не дальше его текущей позиции
+            try (Cursor stored = syncDb.openCursor(null, null)) {
+                DatabaseEntry storedKey = new DatabaseEntry();
+                DatabaseEntry storedDigest = new DatabaseEntry();
+                OperationStatus[] status = {stored.getFirst(storedKey, storedDigest, LockMode.READ_UNCOMMITTED)};
+                byte[][] previousKey = {null};
+
+                source.readOrdered(table.getName(), primaryKey, withRows, row -> {
+                    Object primaryKeyValue = row.get(primaryKey);
+                    if (primaryKeyValue == null) {
+                        return;
+                    }
+                    byte[] key = primaryKeyValue.toString().getBytes(StandardCharsets.UTF_8);
+                    if (previousKey[0] != null && Arrays.compareUnsigned(key, previousKey[0]) <= 0) {
+                        throw new IllegalStateException("Rows of " + table.getName() + " are not ordered by key bytes");
+                    }
+                    previousKey[0] = key;
+
+                    while (status[0] == OperationStatus.SUCCESS && Arrays.compareUnsigned(storedKey.getData(), key) < 0) {
+                        delete(storedKey.getData());
+                        status[0] = stored.getNext(storedKey, storedDigest, LockMode.READ_UNCOMMITTED);
+                    }
+
+                    boolean exists = status[0] == OperationStatus.SUCCESS && Arrays.equals(storedKey.getData(), key);
+                    if (withRows) {
+                        upsert(key, row, exists ? storedDigest.getData() : null);
+                    }
+                    if (exists) {
+                        status[0] = stored.getNext(storedKey, storedDigest, LockMode.READ_UNCOMMITTED);
+                    }
+                });
+
+                while (status[0] == OperationStatus.SUCCESS) {
+                    delete(storedKey.getData());
+                    status[0] = stored.getNext(storedKey, storedDigest, LockMode.READ_UNCOMMITTED);
+                }
+            }
+        }
+
+        // Строки с меткой не раньше сохранённой; возвращает новую метку или прежнюю, если строк нет.
+        // Сравнение нестрогое: строки, изменённые в ту же секунду после прошлого запуска, не теряются.
+        // Метки - строки "yyyy-MM-dd HH:mm:ss", поэтому наибольшая ищется сравнением строк
+        String upsertChangedRows(SyncSource source, String watermark) throws Exception {
+            String[] newWatermark = {null};
+            source.readChanged(table.getName(), UPDATED_AT_COLUMN, watermark, row -> {
+                Object primaryKeyValue = row.get(primaryKey);
+                if (primaryKeyValue == null) {
+                    return;
+                }
+                Object updatedAt = row.get(UPDATED_AT_COLUMN);
+                if (updatedAt != null && (newWatermark[0] == null || updatedAt.toString().compareTo(newWatermark[0]) > 0)) {
+                    newWatermark[0] = updatedAt.toString();
+                }
+
+                byte[] key = primaryKeyValue.toString().getBytes(StandardCharsets.UTF_8);
+                DatabaseEntry storedDigest = new DatabaseEntry();
+                boolean exists = syncDb.get(transaction(), new DatabaseEntry(key), storedDigest, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+                upsert(key, row, exists ? storedDigest.getData() : null);
+            });
+            return newWatermark[0] != null ? newWatermark[0] : watermark;
+        }
+
+        void writeWatermark(Database watermarkDb, String watermark) {
+            watermarkDb.put(transaction(), new DatabaseEntry(WATERMARK_KEY), new DatabaseEntry(watermark.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Строка сохраняется так же, как при экспорте (DatabaseExporter.saveToBerkeleyDB)
+        private void upsert(byte[] key, Map<String, Object> row, byte[] storedDigest) {
+            row.put(primaryKeyField, row.get(primaryKey));
+            row.remove(primaryKey);
+
+            byte[] value = table.getCodec().encode(row);
+            byte[] rowDigest = Arrays.copyOf(digest.digest(value), DIGEST_LENGTH);
+            if (storedDigest != null && Arrays.equals(storedDigest, rowDigest)) {
+                unchanged++;
+                return;
+            }
+
+            table.getDatabase().put(transaction(), new DatabaseEntry(toPrimaryKey(key)), new DatabaseEntry(value));
+            syncDb.put(transaction(), new DatabaseEntry(key), new DatabaseEntry(rowDigest));
+            if (storedDigest != null) {
+                updated++;
+            } else {
+                inserted++;
+            }
+            commitIfFull();
+        }
+
+        private void delete(byte[] key) {
+            table.getDatabase().delete(transaction(), new DatabaseEntry(toPrimaryKey(key)));
+            syncDb.delete(transaction(), new DatabaseEntry(key));
+            deleted++;
+            commitIfFull();
+        }
+
+        // В "<таблица>.sync" ключи - UTF-8 строки в порядке слияния, в самой таблице - KeyEncoding
+        private byte[] toPrimaryKey(byte[] syncKey) {
+            return table.encodeKey(new String(syncKey, StandardCharsets.UTF_8));
+        }
+
+        private Transaction transaction() {
+            if (txn == null) {
+                txn = table.getEnvironment().beginTransaction(null, null);
+            }
+            return txn;
+        }
+
+        private void commitIfFull() {
+            if (++batched >= batchSize) {
+                txn.commitNoSync();
+                txn = null;
+                batched = 0;
+            }
+        }
+
+        // Последняя транзакция (с меткой) фиксируется с записью на диск, вместе с ней
+        // сбрасываются и предыдущие, зафиксированные без ожидания
+        void finish() {
+            if (txn != null) {
+                txn.commit();
+                txn = null;
+            }
+            table.getEnvironment().flushLog(true);
+        }
+
+        // Незафиксированный остаток при ошибке; уже зафиксированные пакеты остаются
+        void abort() {
+            if (txn != null) {
+                txn.abort();
+                txn = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.example;
+
+import java.sql.*;
+import java.text.SimpleDateFormat;
+
+// Источник синхронизации в PostgreSQL. Курсор с fetchSize работает только внутри транзакции,
+// поэтому у соединения должен быть отключён autocommit
+public class JdbcSyncSource implements SyncSource {
+    private final Connection conn;
+    private final int fetchSize;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    public JdbcSyncSource(Connection conn, int fetchSize) {
+        this.conn = conn;
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public String getPrimaryKey(String tableName) throws SQLException {
+        return DatabaseExporter.getPrimaryKey(conn, tableName);
+    }
+
+    // COLLATE "C" сравнивает текст побайтово, то есть в порядке байтов UTF-8
+    @Override
+    public void readOrdered(String tableName, String primaryKey, boolean withRows, RowHandler handler) throws Exception {
+        String query = "SELECT " + (withRows ? "*" : primaryKey) + " FROM " + tableName
+                + " ORDER BY CAST(" + primaryKey + " AS TEXT) COLLATE \"C\"";
+        try (PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            read(stmt, handler);
+        }
+    }
+
+    @Override
+    public void readChanged(String tableName, String updatedAtColumn, String watermark, RowHandler handler) throws Exception {
+        String query = "SELECT * FROM " + tableName + (watermark != null ? " WHERE " + updatedAtColumn + " >= ?" : "");
+        try (PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            if (watermark != null) {
+                stmt.setTimestamp(1, Timestamp.valueOf(watermark));
+            }
+            read(stmt, handler);
+        }
+    }
+
+    private void read(PreparedStatement stmt, RowHandler handler) throws Exception {
+        stmt.setFetchSize(fetchSize);
+        try (ResultSet rs = stmt.executeQuery()) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            while (rs.next()) {
+                handler.accept(DatabaseExporter.readRow(rs, metaData, dateFormat));
+            }
+        }
+    }
+}
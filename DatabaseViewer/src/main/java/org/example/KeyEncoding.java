@@ -0,0 +1,226 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+
+// Кодирование ключей индексов, сохраняющее порядок при побайтовом сравнении (как в JE).
+// Первый байт - тег типа, поэтому null < boolean < число < дата < строка.
+// Целые ключи: big-endian с инвертированным знаковым битом, строки: UTF-8 как есть.
+// Числа в значениях колонок - точная десятичная запись: класс (знак), порядок и цифры.
+public final class KeyEncoding {
+    private static final byte TAG_NULL = 0x00;
+    private static final byte TAG_BOOLEAN = 0x01;
+    private static final byte TAG_INTEGER = 0x02;
+    private static final byte TAG_NUMBER = 0x03;
+    private static final byte TAG_TIMESTAMP = 0x04;
+    private static final byte TAG_STRING = 0x05;
+
+    // Класс числа - первый байт после TAG_NUMBER
+    private static final byte NEGATIVE_INFINITY = 0x00;
+    private static final byte NEGATIVE = 0x01;
+    private static final byte ZERO = 0x02;
+    private static final byte POSITIVE = 0x03;
+    private static final byte POSITIVE_INFINITY = 0x04;
+    private static final byte NAN = 0x05;
+
+    private KeyEncoding() {
+    }
+
+    // Для идентификаторов: целые числа и строки в каноничной записи числа ("42")
+    // кодируются одинаково, поэтому 42 из экспорта и "42" из ADD_ROW совпадают
+    public static byte[] encodeKey(Object value) {
+        if (value instanceof String && isCanonicalLong((String) value)) {
+            return encodeLong(Long.parseLong((String) value));
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return encodeLong(((Number) value).longValue());
+        }
+        if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            return encodeLong(((BigInteger) value).longValue());
+        }
+        return encodeValue(value);
+    }
+
+    // Для значений колонок: все числа сравниваются как десятичные без потери точности,
+    // чтобы 100 и 100.5 из одной колонки сортировались вместе, а long больше 2^53 не склеивались
+    public static byte[] encodeValue(Object value) {
+        if (value == null) {
+            return new byte[]{TAG_NULL};
+        }
+        if (value instanceof Boolean) {
+            return new byte[]{TAG_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        }
+        if (value instanceof Number) {
+            return encodeNumber((Number) value);
+        }
+        if (value instanceof Date) {
+            return ByteBuffer.allocate(9).put(TAG_TIMESTAMP).putLong(((Date) value).getTime() ^ Long.MIN_VALUE).array();
+        }
+        byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[text.length + 1];
+        encoded[0] = TAG_STRING;
+        System.arraycopy(text, 0, encoded, 1, text.length);
+        return encoded;
+    }
+
+    // Первичные ключи. До KeyEncodingMigrator они хранились строкой UTF-8, и "1036" шло раньше "64".
+    // Такие ключи начинаются с печатного символа, а закодированные - с тега меньше 0x20
+    public static boolean isLegacyKey(byte[] key) {
+        return key.length > 0 && (key[0] & 0xFF) >= 0x20;
+    }
+
+    public static byte[] encodePrimaryKey(Object value, boolean legacy) {
+        return legacy ? value.toString().getBytes(StandardCharsets.UTF_8) : encodeKey(value);
+    }
+
+    // Ключ в том виде, в каком его видит клиент: "42" в обоих форматах
+    public static String keyToString(byte[] key) {
+        if (key.length == 0 || isLegacyKey(key)) {
+            return new String(key, StandardCharsets.UTF_8);
+        }
+        Object value = decode(key);
+        return value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : String.valueOf(value);
+    }
+
+    public static boolean isIntegerKey(byte[] key) {
+        return key.length == 9 && key[0] == TAG_INTEGER;
+    }
+
+    // Граница сразу после всех целых ключей: getSearchKeyRange и getPrev от неё дают наибольший
+    public static byte[] getIntegerKeysEnd() {
+        return new byte[]{TAG_INTEGER + 1};
+    }
+
+    public static Object decode(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded, 1, encoded.length - 1);
+        switch (encoded[0]) {
+            case TAG_NULL:
+                return null;
+            case TAG_BOOLEAN:
+                return encoded[1] != 0;
+            case TAG_INTEGER:
+                return buffer.getLong() ^ Long.MIN_VALUE;
+            case TAG_NUMBER:
+                return decodeNumber(encoded);
+            case TAG_TIMESTAMP:
+                return new Timestamp(buffer.getLong() ^ Long.MIN_VALUE);
+            case TAG_STRING:
+                return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("Unknown key tag: " + encoded[0] + " in " + Arrays.toString(encoded));
+        }
+    }
+
+    private static byte[] encodeLong(long value) {
+        return ByteBuffer.allocate(9).put(TAG_INTEGER).putLong(value ^ Long.MIN_VALUE).array();
+    }
+
+    // Число = 0.d1d2d3... * 10^exponent без нулей в конце: сначала сравнивается порядок (4 байта
+    // с инвертированным знаком), потом цифры по байту на цифру (1..10). У отрицательных все байты
+    // после класса инвертированы, а в конце стоит 0xFF: иначе -1 оказалось бы меньше -1.5
+    private static byte[] encodeNumber(Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            double number = value.doubleValue();
+            if (Double.isNaN(number)) {
+                return new byte[]{TAG_NUMBER, NAN};
+            }
+            if (Double.isInfinite(number)) {
+                return new byte[]{TAG_NUMBER, number > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY};
+            }
+        }
+
+        BigDecimal decimal = toBigDecimal(value);
+        if (decimal.signum() == 0) {
+            return new byte[]{TAG_NUMBER, ZERO};
+        }
+        boolean negative = decimal.signum() < 0;
+        String digits = decimal.unscaledValue().abs().toString();
+        int significant = digits.length();
+        while (digits.charAt(significant - 1) == '0') {
+            significant--;
+        }
+        int exponent = decimal.precision() - decimal.scale();
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + significant + (negative ? 1 : 0));
+        buffer.put(TAG_NUMBER).put(negative ? NEGATIVE : POSITIVE);
+        int mask = negative ? 0xFF : 0;
+        int exponentBits = (exponent ^ Integer.MIN_VALUE) ^ (negative ? -1 : 0);
+        buffer.putInt(exponentBits);
+        for (int i = 0; i < significant; i++) {
+            buffer.put((byte) ((digits.charAt(i) - '0' + 1) ^ mask));
+        }
+        if (negative) {
+            buffer.put((byte) 0xFF);
+        }
+        return buffer.array();
+    }
+
+    // Double - по кратчайшей десятичной записи (Double.toString), поэтому 0.1 совпадает с numeric 0.1
+    private static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return BigDecimal.valueOf(value.longValue());
+        }
+        if (value instanceof Float) {
+            return new BigDecimal(value.toString());
+        }
+        return BigDecimal.valueOf(value.doubleValue());
+    }
+
+    private static Object decodeNumber(byte[] encoded) {
+        switch (encoded[1]) {
+            case NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            case ZERO:
+                return BigDecimal.ZERO;
+            case POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case NAN:
+                return Double.NaN;
+            default:
+                boolean negative = encoded[1] == NEGATIVE;
+                int mask = negative ? 0xFF : 0;
+                int exponent = ByteBuffer.wrap(encoded, 2, 4).getInt() ^ (negative ? -1 : 0) ^ Integer.MIN_VALUE;
+                int end = encoded.length - (negative ? 1 : 0);
+                StringBuilder digits = new StringBuilder(end - 6);
+                for (int i = 6; i < end; i++) {
+                    digits.append((char) ('0' + ((encoded[i] ^ mask) & 0xFF) - 1));
+                }
+                BigDecimal magnitude = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exponent);
+                return negative ? magnitude.negate() : magnitude;
+        }
+    }
+
+    static boolean isCanonicalLong(String value) {
+        int length = value.length();
+        if (length == 0 || length > 19) {
+            return false;
+        }
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (start == length || (value.charAt(start) == '0' && length > start + 1)) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        try {
+            Long.parseLong(value);
+            return !"-0".equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
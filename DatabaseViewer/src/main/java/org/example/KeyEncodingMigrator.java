@@ -0,0 +1,134 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+// Переводит первичные ключи из UTF-8 строк в формат KeyEncoding: целые ключи после
+// этого идут в числовом порядке. Запуск при остановленном сервере: KeyEncodingMigrator [папка berkeley_db]
+// Таблица переписывается в "<таблица>.rekeyed" и подменяет старую одной транзакцией;
+// индексы хранят старые ключи и удаляются - сервер построит их заново.
+// Уже переведённые таблицы пропускаются, поэтому миграцию можно перезапускать после сбоя.
+public class KeyEncodingMigrator {
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) {
+        File berkeleyDbFolder = new File(args.length > 0 ? args[0] : "berkeley_db");
+
+        File[] tableFolders = berkeleyDbFolder.listFiles(File::isDirectory);
+        if (tableFolders == null) {
+            System.err.println("Folder not found: " + berkeleyDbFolder);
+            return;
+        }
+
+        if (EnvironmentRegistry.isSharedLayout(berkeleyDbFolder)) {
+            try (Environment environment = openEnvironment(berkeleyDbFolder)) {
+                for (String tableName : EnvironmentRegistry.getTableNames(environment)) {
+                    migrateTable(environment, tableName);
+                }
+            }
+            return;
+        }
+
+        for (File tableFolder : tableFolders) {
+            try (Environment environment = openEnvironment(tableFolder)) {
+                migrateTable(environment, tableFolder.getName());
+            } catch (Exception e) {
+                System.err.println("Failed to open environment " + tableFolder);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Environment openEnvironment(File folder) {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(false);
+        envConfig.setTransactional(true);
+        return new Environment(folder, envConfig);
+    }
+
+    private static void migrateTable(Environment environment, String tableName) {
+        String rekeyedName = tableName + ".rekeyed";
+        try {
+            // Остаток прерванной миграции
+            if (environment.getDatabaseNames().contains(rekeyedName)) {
+                environment.removeDatabase(null, rekeyedName);
+            }
+
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(false);
+            dbConfig.setTransactional(true);
+
+            DatabaseConfig rekeyedConfig = new DatabaseConfig();
+            rekeyedConfig.setAllowCreate(true);
+            rekeyedConfig.setExclusiveCreate(true);
+            rekeyedConfig.setTransactional(true);
+
+            long copied;
+            try (Database database = environment.openDatabase(null, tableName, dbConfig)) {
+                if (!EnvironmentRegistry.hasLegacyKeys(database)) {
+                    System.out.println(tableName + ": keys are already encoded");
+                    return;
+                }
+                try (Database rekeyed = environment.openDatabase(null, rekeyedName, rekeyedConfig)) {
+                    copied = copyRekeyed(environment, database, rekeyed);
+                }
+            }
+
+            // Старая таблица и её индексы заменяются целиком; словарь колонок и состояние
+            // IncrementalSync (ключи там остаются строками) не трогаются
+            Transaction txn = environment.beginTransaction(null, null);
+            try {
+                for (String databaseName : environment.getDatabaseNames()) {
+                    if (databaseName.startsWith(tableName + ".") && !databaseName.equals(rekeyedName)
+                            && !databaseName.equals(RowCodec.getDictionaryName(tableName))
+                            && !databaseName.equals(tableName + ".sync")
+                            && !databaseName.equals(tableName + ".watermark")) {
+                        environment.removeDatabase(txn, databaseName);
+                    }
+                }
+                environment.removeDatabase(txn, tableName);
+                environment.renameDatabase(txn, rekeyedName, tableName);
+                txn.commit();
+            } finally {
+                if (txn.getState() == Transaction.State.OPEN) {
+                    txn.abort();
+                }
+            }
+            environment.flushLog(true);
+            System.out.println(tableName + ": " + copied + " keys converted");
+        } catch (Exception e) {
+            System.err.println("Failed to migrate table " + tableName);
+            e.printStackTrace();
+        }
+    }
+
+    // Строки идут транзакциями по BATCH_SIZE без ожидания диска; журнал сбрасывается после подмены
+    private static long copyRekeyed(Environment environment, Database source, Database target) {
+        long copied = 0;
+        try (Cursor cursor = source.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+
+            OperationStatus status = cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
+            while (status == OperationStatus.SUCCESS) {
+                Transaction txn = environment.beginTransaction(null, null);
+                try {
+                    for (int i = 0; i < BATCH_SIZE && status == OperationStatus.SUCCESS; i++) {
+                        byte[] key = KeyEncoding.encodeKey(new String(keyEntry.getData(), StandardCharsets.UTF_8));
+                        target.put(txn, new DatabaseEntry(key), valueEntry);
+                        copied++;
+                        status = cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
+                    }
+                    txn.commitNoSync();
+                } finally {
+                    if (txn.getState() == Transaction.State.OPEN) {
+                        txn.abort();
+                    }
+                }
+            }
+        }
+        return copied;
+    }
+}
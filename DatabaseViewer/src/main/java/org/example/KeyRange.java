@@ -0,0 +1,89 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.util.Arrays;
+
+// Диапазон первичных ключей команды GET_RANGE и позиция обхода в нём.
+// Границы - уже закодированные ключи таблицы (TableHandle.encodeKey), null - без границы.
+// Обход продолжается с последнего отданного ключа, поэтому курсор можно закрывать между порциями;
+// remaining - сколько строк ещё можно отдать (limit команды).
+public class KeyRange {
+    private final byte[] lowerKey;
+    private final boolean lowerInclusive;
+    private final byte[] upperKey;
+    private final boolean upperInclusive;
+    private final boolean ascending;
+    private byte[] lastKey;
+    private int remaining;
+
+    public KeyRange(byte[] lowerKey, boolean lowerInclusive, byte[] upperKey, boolean upperInclusive,
+                    boolean ascending, int limit) {
+        this.lowerKey = lowerKey;
+        this.lowerInclusive = lowerInclusive;
+        this.upperKey = upperKey;
+        this.upperInclusive = upperInclusive;
+        this.ascending = ascending;
+        this.remaining = limit;
+    }
+
+    // Ставит курсор на первый ещё не отданный ключ; вызывающий проверяет его через contains
+    public OperationStatus position(Cursor cursor, DatabaseEntry keyEntry, DatabaseEntry valueEntry) {
+        byte[] from = lastKey != null ? lastKey : ascending ? lowerKey : upperKey;
+        boolean fromInclusive = lastKey == null && (ascending ? lowerInclusive : upperInclusive);
+
+        if (from == null) {
+            return ascending
+                    ? cursor.getFirst(keyEntry, valueEntry, LockMode.DEFAULT)
+                    : cursor.getLast(keyEntry, valueEntry, LockMode.DEFAULT);
+        }
+
+        keyEntry.setData(from);
+        OperationStatus status = cursor.getSearchKeyRange(keyEntry, valueEntry, LockMode.DEFAULT);
+        if (ascending) {
+            if (status == OperationStatus.SUCCESS && !fromInclusive && Arrays.equals(keyEntry.getData(), from)) {
+                status = cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT);
+            }
+            return status;
+        }
+
+        // getSearchKeyRange даёт первый ключ не меньше from, при обходе назад нужен последний не больше
+        if (status != OperationStatus.SUCCESS) {
+            return cursor.getLast(keyEntry, valueEntry, LockMode.DEFAULT);
+        }
+        if (!fromInclusive || !Arrays.equals(keyEntry.getData(), from)) {
+            return cursor.getPrev(keyEntry, valueEntry, LockMode.DEFAULT);
+        }
+        return status;
+    }
+
+    public OperationStatus next(Cursor cursor, DatabaseEntry keyEntry, DatabaseEntry valueEntry) {
+        return ascending
+                ? cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT)
+                : cursor.getPrev(keyEntry, valueEntry, LockMode.DEFAULT);
+    }
+
+    public boolean contains(byte[] key) {
+        if (lowerKey != null) {
+            int comparison = Arrays.compareUnsigned(key, lowerKey);
+            if (comparison < 0 || (comparison == 0 && !lowerInclusive)) {
+                return false;
+            }
+        }
+        if (upperKey != null) {
+            int comparison = Arrays.compareUnsigned(key, upperKey);
+            return comparison < 0 || (comparison == 0 && upperInclusive);
+        }
+        return true;
+    }
+
+    // Строка с этим ключом отдана клиенту
+    public void advance(byte[] key) {
+        lastKey = key;
+        remaining--;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Упорядоченные индексы для сортировки (GET_TABLE_DATA с orderBy) без чтения всей таблицы.
+// Объявляются в indexes.txt рядом с папкой berkeley_db, по строке на таблицу:
+//   tour_bookings:booking_date,total_price
+// Строки, начинающиеся с '#', - комментарии.
+public final class OrderedIndexes {
+    private OrderedIndexes() {
+    }
+
+    public static Map<String, List<String>> load(File indexFile) {
+        Map<String, List<String>> indexes = new HashMap<>();
+        if (!indexFile.exists()) {
+            return indexes;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split(":");
+                if (parts.length != 2) {
+                    System.err.println("Invalid index declaration: " + line);
+                    continue;
+                }
+
+                List<String> columns = indexes.computeIfAbsent(parts[0].trim(), table -> new ArrayList<>());
+                for (String column : parts[1].split(",")) {
+                    if (!column.isBlank() && !columns.contains(column.trim())) {
+                        columns.add(column.trim());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read " + indexFile + ": " + e.getMessage());
+        }
+        return indexes;
+    }
+
+    // v2 - числа в KeyEncoding.encodeValue кодируются точно, а не как double. Индекс прежнего
+    // формата не совпадает ни с одним именем и удаляется при открытии таблицы, новый строится заново
+    public static String getIndexName(String tableName, String column) {
+        return tableName + "." + column + ".v2.ordered";
+    }
+}
@@ -0,0 +1,141 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Выдача первичных ключей из счётчиков в памяти.
+// В primary_keys.txt хранится не последний выданный id, а верхняя граница зарезервированного
+// блока: файл переписывается раз в BLOCK_SIZE вставок и всегда до того, как id из блока
+// выдан, поэтому после сбоя id могут пропускаться, но не повторяться.
+public class PrimaryKeyAllocator {
+    private static final long BLOCK_SIZE = Long.getLong("server.keyBlockSize", 100);
+
+    private final File keyFile;
+    private final EnvironmentRegistry registry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Long> persistedLimits = new TreeMap<>();
+
+    public PrimaryKeyAllocator(File keyFile, EnvironmentRegistry registry) throws IOException {
+        this.keyFile = keyFile;
+        this.registry = registry;
+
+        if (keyFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(keyFile, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":");
+                    if (parts.length == 2) {
+                        persistedLimits.put(parts[0].trim(), Long.parseLong(parts[1].trim()));
+                    }
+                }
+            }
+        }
+    }
+
+    public long nextKey(String tableName) throws IOException {
+        return allocate(tableName, 1);
+    }
+
+    // Первый из count подряд идущих ключей
+    public long allocate(String tableName, int count) throws IOException {
+        Counter counter = counters.computeIfAbsent(tableName, this::createCounter);
+        long last = counter.next.addAndGet(count);
+        if (last > counter.reservedLimit) {
+            reserve(counter, last);
+        }
+        return last - count + 1;
+    }
+
+    private Counter createCounter(String tableName) {
+        String keyName = DatabaseServer.singularize(tableName) + "_id";
+        long persisted;
+        synchronized (persistedLimits) {
+            persisted = persistedLimits.getOrDefault(keyName, 0L);
+        }
+        // Сверка с данными: файл мог потеряться или отстать от экспорта
+        long start = Math.max(persisted, findMaxExistingKey(tableName));
+        return new Counter(keyName, start);
+    }
+
+    private synchronized void reserve(Counter counter, long required) throws IOException {
+        if (required <= counter.reservedLimit) {
+            return;
+        }
+        long newLimit = required + BLOCK_SIZE;
+        synchronized (persistedLimits) {
+            persistedLimits.put(counter.keyName, newLimit);
+            persist();
+        }
+        counter.reservedLimit = newLimit;
+    }
+
+    private void persist() throws IOException {
+        File tempFile = new File(keyFile.getAbsoluteFile().getParentFile(), keyFile.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder content = new StringBuilder();
+            for (Map.Entry<String, Long> entry : persistedLimits.entrySet()) {
+                content.append(entry.getKey()).append(':').append(entry.getValue()).append(System.lineSeparator());
+            }
+            channel.write(StandardCharsets.UTF_8.encode(content.toString()));
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long findMaxExistingKey(String tableName) {
+        EnvironmentRegistry.TableHandle table = registry.getTable(tableName);
+        if (table == null) {
+            return 0;
+        }
+
+        long max = 0;
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+
+            // Закодированные целые ключи упорядочены: наибольший стоит прямо перед нецелыми
+            if (!table.hasLegacyKeys()) {
+                keyEntry.setData(KeyEncoding.getIntegerKeysEnd());
+                OperationStatus status = cursor.getSearchKeyRange(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS
+                        ? cursor.getPrev(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED)
+                        : cursor.getLast(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
+                if (status == OperationStatus.SUCCESS && KeyEncoding.isIntegerKey(keyEntry.getData())) {
+                    max = Math.max(max, (Long) KeyEncoding.decode(keyEntry.getData()));
+                }
+                return max;
+            }
+
+            while (cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+                String key = new String(keyEntry.getData(), StandardCharsets.UTF_8);
+                if (KeyEncoding.isCanonicalLong(key)) {
+                    max = Math.max(max, Long.parseLong(key));
+                }
+            }
+        }
+        return max;
+    }
+
+    private static class Counter {
+        private final String keyName;
+        private final AtomicLong next;
+        private volatile long reservedLimit;
+
+        Counter(String keyName, long start) {
+            this.keyName = keyName;
+            this.next = new AtomicLong(start);
+            this.reservedLimit = start;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import java.io.*;
+import java.sql.Timestamp;
+import java.util.*;
+
+// Сравнение WireProtocol с Java-сериализацией на ответе GET_TABLE_DATA.
+// Запуск: ProtocolBenchmark [строк] [итераций]
+public class ProtocolBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        List<List<Object>> tableData = buildTableData(rows);
+
+        // Прогрев JIT
+        for (int i = 0; i < Math.max(5, iterations / 5); i++) {
+            javaSerializationRoundTrip(tableData);
+            wireProtocolRoundTrip(tableData);
+        }
+
+        System.out.printf("GET_TABLE_DATA response, %d rows, %d iterations%n", rows, iterations);
+        report("Java serialization", tableData, iterations, ProtocolBenchmark::javaSerializationRoundTrip);
+        report("WireProtocol", tableData, iterations, ProtocolBenchmark::wireProtocolRoundTrip);
+    }
+
+    private interface RoundTrip {
+        int run(List<List<Object>> tableData) throws Exception;
+    }
+
+    private static void report(String name, List<List<Object>> tableData, int iterations, RoundTrip roundTrip) throws Exception {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes = roundTrip.run(tableData);
+        }
+        double millisPerIteration = (System.nanoTime() - start) / 1_000_000.0 / iterations;
+        System.out.printf("%-20s %10d bytes  %8.2f ms per encode+decode%n", name, bytes, millisPerIteration);
+    }
+
+    private static int javaSerializationRoundTrip(List<List<Object>> tableData) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeLong(1L);
+            out.writeObject(tableData);
+        }
+        byte[] payload = buffer.toByteArray();
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            in.readLong();
+            if (((List<?>) in.readObject()).size() != tableData.size()) {
+                throw new IllegalStateException("Round trip mismatch");
+            }
+        }
+        return payload.length;
+    }
+
+    private static int wireProtocolRoundTrip(List<List<Object>> tableData) throws Exception {
+        byte[] payload = WireProtocol.encodeResponse(1L, tableData);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (((List<?>) WireProtocol.readFrame(in).readResponse()).size() != tableData.size()) {
+            throw new IllegalStateException("Round trip mismatch");
+        }
+        return payload.length;
+    }
+
+    private static List<List<Object>> buildTableData(int rows) {
+        Random random = new Random(42);
+        List<List<Object>> tableData = new ArrayList<>();
+        tableData.add(new ArrayList<>(List.of("tour_booking_id", "client_id", "tour_id", "booking_date", "persons", "total_price", "status", "is_paid")));
+        for (int i = 1; i <= rows; i++) {
+            List<Object> row = new ArrayList<>();
+            row.add(String.valueOf(i));
+            row.add(random.nextInt(1000));
+            row.add(random.nextInt(200));
+            row.add(new Timestamp(1_700_000_000_000L + random.nextInt(1_000_000_000)).toString());
+            row.add(1 + random.nextInt(5));
+            row.add(100 + random.nextInt(100_000) / 100.0);
+            row.add(random.nextBoolean() ? "confirmed" : "pending");
+            row.add(random.nextBoolean());
+            tableData.add(row);
+        }
+        return tableData;
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Кэш готовых (уже закодированных) ответов на чтение таблицы.
+// У каждой таблицы есть счётчик версий, который увеличивает любая запись; ответ хранится вместе
+// с версией, при которой построен, и после записи в таблицу больше не отдаётся.
+// Версию нужно читать под блокировкой чтения таблицы, а увеличивать - под блокировкой записи:
+// тогда ответ и версия всегда соответствуют друг другу.
+public class ResultCache {
+    private final long maximumBytes;
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ResultCache(long maximumBytes) {
+        this.maximumBytes = maximumBytes;
+    }
+
+    public long getVersion(String tableName) {
+        return versions.computeIfAbsent(tableName, name -> new AtomicLong()).get();
+    }
+
+    public void bumpVersion(String tableName) {
+        versions.computeIfAbsent(tableName, name -> new AtomicLong()).incrementAndGet();
+    }
+
+    // key - команда и её аргументы
+    public synchronized WireProtocol.EncodedValue get(List<Object> key, long version) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.version != version) {
+            if (entry != null) {
+                remove(key, entry);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(List<Object> key, long version, WireProtocol.EncodedValue value) {
+        // Один ответ не должен вытеснять весь кэш
+        if (value.size() > maximumBytes / 4) {
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(version, value));
+        if (previous != null) {
+            totalBytes -= previous.value.size();
+        }
+        totalBytes += value.size();
+
+        Iterator<Map.Entry<List<Object>, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maximumBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().value.size();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long requests = hits + misses;
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) hits / requests);
+        stats.put("evictions", evictions);
+        stats.put("entries", (long) entries.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maximumBytes", maximumBytes);
+        return stats;
+    }
+
+    private void remove(List<Object> key, Entry entry) {
+        entries.remove(key);
+        totalBytes -= entry.value.size();
+    }
+
+    private static final class Entry {
+        private final long version;
+        private final WireProtocol.EncodedValue value;
+
+        Entry(long version, WireProtocol.EncodedValue value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package org.example;
+
+import java.util.*;
+
+// Кэш декодированных строк по (таблица, первичный ключ) с вытеснением W-TinyLFU:
+// новые строки попадают в маленькое LRU-окно, а в основную часть (SLRU: probation + protected)
+// допускаются, только если встречались чаще, чем кандидат на вытеснение. Частоты считает
+// count-min sketch с 4-битными счётчиками, которые периодически делятся пополам.
+// Размер ограничен суммарным весом строк (байты в хранилище), а не их числом.
+// Согласованность обеспечивает вызывающий код: записи обновляют кэш под блокировкой записи таблицы.
+// Кэш разбит на сегменты по хэшу ключа, у каждого свой монитор, окно, SLRU и sketch - параллельные
+// чтения разных строк не ждут друг друга. Вес делится между сегментами поровну.
+public class RowCache {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    // Примерные накладные расходы на запись в кэше сверх размера строки
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long maximumWeight;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    public RowCache(long maximumWeight) {
+        this(maximumWeight, Integer.getInteger("server.rowCacheSegments", 16));
+    }
+
+    public RowCache(long maximumWeight, int segmentCount) {
+        int count = Integer.highestOneBit(Math.max(1, segmentCount));
+        this.maximumWeight = maximumWeight;
+        this.segments = new Segment[count];
+        this.segmentMask = count - 1;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maximumWeight / count);
+        }
+    }
+
+    public Map<String, Object> get(String tableName, byte[] key) {
+        RowKey rowKey = new RowKey(tableName, key);
+        return getSegment(rowKey).get(rowKey);
+    }
+
+    // Строка сохраняется неизменяемой: её читают несколько запросов одновременно
+    public void put(String tableName, byte[] key, Map<String, Object> row, int storedSize) {
+        RowKey rowKey = new RowKey(tableName, key.clone());
+        getSegment(rowKey).put(rowKey, row, storedSize);
+    }
+
+    public void invalidate(String tableName, byte[] key) {
+        RowKey rowKey = new RowKey(tableName, key);
+        getSegment(rowKey).invalidate(rowKey);
+    }
+
+    public Map<String, Object> getStats() {
+        long[] totals = new long[5];
+        for (Segment segment : segments) {
+            long[] counters = segment.getCounters();
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += counters[i];
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long requests = totals[0] + totals[1];
+        stats.put("hits", totals[0]);
+        stats.put("misses", totals[1]);
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) totals[0] / requests);
+        stats.put("evictions", totals[2]);
+        stats.put("entries", totals[3]);
+        stats.put("weightBytes", totals[4]);
+        stats.put("maximumWeightBytes", maximumWeight);
+        stats.put("segments", segments.length);
+        return stats;
+    }
+
+    // Старшие биты перемешанного хэша: младшие использует sketch внутри сегмента
+    private Segment getSegment(RowKey rowKey) {
+        return segments[((rowKey.hashCode() * 0x9E3779B9) >>> 16) & segmentMask];
+    }
+
+    private static final class Segment {
+        private final long maximumWeight;
+        private final long windowMaximum;
+        private final long mainMaximum;
+        private final long protectedMaximum;
+
+        private final Map<RowKey, Node> data = new HashMap<>();
+        private final LinkedHashMap<RowKey, Node> window = new LinkedHashMap<>();
+        private final LinkedHashMap<RowKey, Node> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<RowKey, Node> protectedSegment = new LinkedHashMap<>();
+        private final FrequencySketch sketch;
+
+        private long windowWeight;
+        private long probationWeight;
+        private long protectedWeight;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+            this.windowMaximum = Math.max(1, maximumWeight / 100);
+            this.mainMaximum = maximumWeight - windowMaximum;
+            this.protectedMaximum = mainMaximum * 80 / 100;
+            // Ширина sketch - по ожидаемому числу строк при среднем размере около 256 байт
+            this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, maximumWeight / 256)));
+        }
+
+        synchronized Map<String, Object> get(RowKey rowKey) {
+            sketch.increment(rowKey.hashCode());
+
+            Node node = data.get(rowKey);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            onAccess(node);
+            return node.row;
+        }
+
+        synchronized void put(RowKey rowKey, Map<String, Object> row, int storedSize) {
+            int weight = storedSize + ENTRY_OVERHEAD;
+            if (maximumWeight <= 0 || weight > maximumWeight) {
+                remove(data.get(rowKey));
+                return;
+            }
+
+            Map<String, Object> value = Collections.unmodifiableMap(row);
+            Node node = data.get(rowKey);
+            if (node != null) {
+                setWeight(node, weight);
+                node.row = value;
+                onAccess(node);
+            } else {
+                sketch.increment(rowKey.hashCode());
+                node = new Node(rowKey, value, weight);
+                data.put(rowKey, node);
+                window.put(rowKey, node);
+                windowWeight += weight;
+            }
+            evict();
+        }
+
+        synchronized void invalidate(RowKey rowKey) {
+            remove(data.get(rowKey));
+        }
+
+        // hits, misses, evictions, entries, weight
+        synchronized long[] getCounters() {
+            return new long[]{hits, misses, evictions, data.size(), windowWeight + probationWeight + protectedWeight};
+        }
+
+        private void onAccess(Node node) {
+            switch (node.segment) {
+                case WINDOW:
+                    window.remove(node.key);
+                    window.put(node.key, node);
+                    break;
+                case PROBATION:
+                    // Повторное обращение переводит строку в защищённый сегмент
+                    probation.remove(node.key);
+                    probationWeight -= node.weight;
+                    node.segment = PROTECTED;
+                    protectedSegment.put(node.key, node);
+                    protectedWeight += node.weight;
+                    demoteProtected();
+                    break;
+                default:
+                    protectedSegment.remove(node.key);
+                    protectedSegment.put(node.key, node);
+                    break;
+            }
+        }
+
+        private void demoteProtected() {
+            while (protectedWeight > protectedMaximum) {
+                Node demoted = first(protectedSegment);
+                protectedSegment.remove(demoted.key);
+                protectedWeight -= demoted.weight;
+                demoted.segment = PROBATION;
+                probation.put(demoted.key, demoted);
+                probationWeight += demoted.weight;
+            }
+        }
+
+        private void evict() {
+            while (windowWeight > windowMaximum) {
+                Node candidate = first(window);
+                window.remove(candidate.key);
+                windowWeight -= candidate.weight;
+                admit(candidate);
+            }
+            // Основная часть могла переполниться, если выросла уже закэшированная строка
+            while (probationWeight + protectedWeight > mainMaximum) {
+                remove(!probation.isEmpty() ? first(probation) : first(protectedSegment));
+                evictions++;
+            }
+        }
+
+        // Кандидат из окна вытесняет жертв из основной части, пока встречался чаще каждой из них
+        private void admit(Node candidate) {
+            int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+            while (probationWeight + protectedWeight + candidate.weight > mainMaximum) {
+                Node victim = !probation.isEmpty() ? first(probation) : first(protectedSegment);
+                if (victim == null || candidateFrequency <= sketch.frequency(victim.key.hashCode())) {
+                    data.remove(candidate.key);
+                    evictions++;
+                    return;
+                }
+                remove(victim);
+                evictions++;
+            }
+
+            candidate.segment = PROBATION;
+            probation.put(candidate.key, candidate);
+            probationWeight += candidate.weight;
+        }
+
+        private void setWeight(Node node, int weight) {
+            int delta = weight - node.weight;
+            node.weight = weight;
+            switch (node.segment) {
+                case WINDOW:
+                    windowWeight += delta;
+                    break;
+                case PROBATION:
+                    probationWeight += delta;
+                    break;
+                default:
+                    protectedWeight += delta;
+                    break;
+            }
+        }
+
+        private void remove(Node node) {
+            if (node == null) {
+                return;
+            }
+            data.remove(node.key);
+            switch (node.segment) {
+                case WINDOW:
+                    window.remove(node.key);
+                    windowWeight -= node.weight;
+                    break;
+                case PROBATION:
+                    probation.remove(node.key);
+                    probationWeight -= node.weight;
+                    break;
+                default:
+                    protectedSegment.remove(node.key);
+                    protectedWeight -= node.weight;
+                    break;
+            }
+        }
+
+        private static Node first(LinkedHashMap<RowKey, Node> segment) {
+            return segment.isEmpty() ? null : segment.values().iterator().next();
+        }
+    }
+
+    private static final class RowKey {
+        private final String tableName;
+        private final byte[] key;
+        private final int hash;
+
+        RowKey(String tableName, byte[] key) {
+            this.tableName = tableName;
+            this.key = key;
+            this.hash = 31 * tableName.hashCode() + Arrays.hashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RowKey)) {
+                return false;
+            }
+            RowKey that = (RowKey) other;
+            return hash == that.hash && tableName.equals(that.tableName) && Arrays.equals(key, that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Node {
+        private final RowKey key;
+        private Map<String, Object> row;
+        private int weight;
+        private int segment = WINDOW;
+
+        Node(RowKey key, Map<String, Object> row, int weight) {
+            this.key = key;
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+
+    // Count-min sketch: 4 строки по 4-битному счётчику, 16 счётчиков в одном long
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int depth = 0; depth < SEEDS.length; depth++) {
+                long slot = slot(hash, depth);
+                int index = (int) slot & tableMask;
+                int offset = (int) (slot >>> 60) << 2;
+                frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xF));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int depth = 0; depth < SEEDS.length; depth++) {
+                long slot = slot(hash, depth);
+                int index = (int) slot & tableMask;
+                int offset = (int) (slot >>> 60) << 2;
+                if (((table[index] >>> offset) & 0xF) < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            // Старение: частоты делятся пополам, чтобы давно популярные строки не держались вечно
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        private static long slot(int hash, int depth) {
+            long slot = (hash + SEEDS[depth]) * SEEDS[(depth + 1) & 3];
+            return slot ^ (slot >>> 29);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sleepycat.je.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+// Бинарный формат строк таблицы вместо JSON.
+// Строка: [byte версия формата][varint число полей]{[varint номер колонки][значение WireProtocol]}.
+// Номера колонок берутся из словаря таблицы (база <table>.columns в том же окружении):
+// словарь начинается с колонок из schema.json и только дополняется, поэтому старые строки
+// остаются читаемыми после появления новых колонок.
+// Строки в старом формате (JSON, начинаются с '{') по-прежнему читаются.
+public class RowCodec {
+    public static final byte FORMAT_VERSION = 1;
+    private static final byte JSON_START = '{';
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String tableName;
+    private final Database dictionary;
+    private final Map<String, String> dataTypes;
+    private volatile List<String> columns;
+    private volatile Map<String, Integer> ordinals;
+
+    private RowCodec(String tableName, Database dictionary, List<String> columns, Map<String, String> dataTypes) {
+        this.tableName = tableName;
+        this.dictionary = dictionary;
+        this.dataTypes = dataTypes;
+        setColumns(columns);
+    }
+
+    public static RowCodec open(Environment environment, String tableName, Map<String, String> schemaColumns) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(environment.getConfig().getTransactional());
+        Database dictionary = environment.openDatabase(null, getDictionaryName(tableName), dbConfig);
+
+        List<String> columns = new ArrayList<>();
+        try (Cursor cursor = dictionary.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                columns.add(new String(valueEntry.getData(), StandardCharsets.UTF_8));
+            }
+        }
+
+        RowCodec codec = new RowCodec(tableName, dictionary, columns, schemaColumns);
+        for (String column : schemaColumns.keySet()) {
+            codec.getOrdinal(column);
+        }
+        return codec;
+    }
+
+    public static String getDictionaryName(String tableName) {
+        return tableName + ".columns";
+    }
+
+    // schema.json из DatabaseExporter: таблица -> (колонка -> тип PostgreSQL)
+    public static Map<String, Map<String, String>> loadSchema(File schemaFile) {
+        Map<String, Map<String, String>> schema = new HashMap<>();
+        if (!schemaFile.exists()) {
+            return schema;
+        }
+
+        try {
+            List<Map<String, Object>> columns = MAPPER.readValue(schemaFile, new TypeReference<>() {});
+            for (Map<String, Object> column : columns) {
+                schema.computeIfAbsent((String) column.get("table_name"), table -> new LinkedHashMap<>())
+                        .put((String) column.get("column_name"), (String) column.get("data_type"));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read " + schemaFile + ": " + e.getMessage());
+        }
+        return schema;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    // Тип PostgreSQL из schema.json; null, если колонки в схеме нет
+    public String getDataType(String column) {
+        return dataTypes.get(column);
+    }
+
+    // Известные колонки таблицы в порядке номеров
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    // Поля пишутся в порядке номеров колонок, поэтому все строки таблицы
+    // читаются с одинаковым порядком колонок, как бы ни была упорядочена исходная Map
+    public byte[] encode(Map<String, Object> row) {
+        TreeMap<Integer, String> fields = new TreeMap<>();
+        for (String column : row.keySet()) {
+            fields.put(getOrdinal(column), column);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + row.size() * 16);
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            WireProtocol.writeCount(out, row.size());
+            for (Map.Entry<Integer, String> field : fields.entrySet()) {
+                WireProtocol.writeCount(out, field.getKey());
+                WireProtocol.writeValue(out, normalize(field.getValue(), row.get(field.getValue())));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    public Map<String, Object> decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public Map<String, Object> decode(byte[] data, int offset, int length) {
+        return decode(data, offset, length, null);
+    }
+
+    public Map<String, Object> decode(byte[] data, Set<String> projection) {
+        return decode(data, 0, data.length, projection);
+    }
+
+    // Только колонки из projection (null - все): значения остальных пропускаются без разбора,
+    // для старых JSON-строк - потоковым парсером Jackson
+    public Map<String, Object> decode(byte[] data, int offset, int length, Set<String> projection) {
+        try {
+            if (data[offset] == JSON_START) {
+                if (projection == null) {
+                    return MAPPER.readValue(data, offset, length, new TypeReference<LinkedHashMap<String, Object>>() {});
+                }
+                return decodeJsonColumns(data, offset, length, projection);
+            }
+            if (data[offset] != FORMAT_VERSION) {
+                throw new StreamCorruptedException("Unsupported row format " + data[offset] + " in " + tableName);
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset + 1, length - 1));
+            List<String> currentColumns = columns;
+            int fieldCount = WireProtocol.readCount(in);
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < fieldCount; i++) {
+                int ordinal = WireProtocol.readCount(in);
+                if (ordinal >= currentColumns.size()) {
+                    throw new StreamCorruptedException("Unknown column #" + ordinal + " in " + tableName);
+                }
+                String column = currentColumns.get(ordinal);
+                if (projection == null || projection.contains(column)) {
+                    row.put(column, WireProtocol.readValue(in));
+                } else {
+                    WireProtocol.skipValue(in);
+                }
+            }
+            return row;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot decode row of " + tableName, e);
+        }
+    }
+
+    private Map<String, Object> decodeJsonColumns(byte[] data, int offset, int length, Set<String> projection) throws IOException {
+        Map<String, Object> row = new LinkedHashMap<>();
+        try (JsonParser parser = MAPPER.getFactory().createParser(data, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new StreamCorruptedException("Row of " + tableName + " is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String column = parser.getCurrentName();
+                parser.nextToken();
+                if (projection.contains(column)) {
+                    row.put(column, MAPPER.readValue(parser, Object.class));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return row;
+    }
+
+    public static boolean isLegacyJson(byte[] data, int offset) {
+        return data[offset] == JSON_START;
+    }
+
+    private int getOrdinal(String column) {
+        Integer ordinal = ordinals.get(column);
+        return ordinal != null ? ordinal : appendColumn(column);
+    }
+
+    private synchronized int appendColumn(String column) {
+        Integer existing = ordinals.get(column);
+        if (existing != null) {
+            return existing;
+        }
+
+        List<String> newColumns = new ArrayList<>(columns);
+        int ordinal = newColumns.size();
+        newColumns.add(column);
+
+        DatabaseEntry keyEntry = new DatabaseEntry(ByteBuffer.allocate(4).putInt(ordinal).array());
+        DatabaseEntry valueEntry = new DatabaseEntry(column.getBytes(StandardCharsets.UTF_8));
+        dictionary.put(null, keyEntry, valueEntry);
+
+        setColumns(newColumns);
+        return ordinal;
+    }
+
+    private void setColumns(List<String> newColumns) {
+        Map<String, Integer> newOrdinals = new HashMap<>();
+        for (int i = 0; i < newColumns.size(); i++) {
+            newOrdinals.put(newColumns.get(i), i);
+        }
+        columns = Collections.unmodifiableList(newColumns);
+        ordinals = newOrdinals;
+    }
+
+    // Приводит значения к типу колонки из schema.json: клиент присылает, например,
+    // внешние ключи строками. Даты хранятся строками, как и при экспорте.
+    private Object normalize(String column, Object value) {
+        if (value instanceof Date) {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format((Date) value);
+        }
+        if (value == null || value instanceof Boolean || value instanceof Collection || value instanceof Map) {
+            return value;
+        }
+        if (!(value instanceof String) && !(value instanceof Number)) {
+            // uuid, json (PGobject), time и прочие типы драйвера хранятся строками
+            return value.toString();
+        }
+
+        String text = value.toString().trim();
+        String dataType = dataTypes.getOrDefault(column, "");
+        try {
+            switch (dataType) {
+                case "smallint":
+                case "integer":
+                    return Integer.parseInt(text);
+                case "bigint":
+                    return Long.parseLong(text);
+                case "real":
+                case "double precision":
+                    return Double.parseDouble(text);
+                case "numeric":
+                    // Экспорт хранит numeric как BigDecimal - новые значения должны сравниваться с ними
+                    return new BigDecimal(text);
+                case "boolean":
+                    if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+                        return Boolean.parseBoolean(text);
+                    }
+                    return value;
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    public void close() {
+        dictionary.close();
+    }
+}
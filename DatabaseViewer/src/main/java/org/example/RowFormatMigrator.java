@@ -0,0 +1,141 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.util.*;
+
+// Переводит строки, сохранённые в JSON, в бинарный формат RowCodec.
+// Запуск при остановленном сервере: RowFormatMigrator [папка berkeley_db] [schema.json]
+// Строки уже в новом формате пропускаются, поэтому миграцию можно перезапускать после сбоя.
+// RowCodec.normalize приводит значения к типам из схемы (например, "42" к 42), а от типа
+// зависят ключи индексов, поэтому индексы таблицы удаляются вместе с первой переписанной
+// строкой, и сервер строит их заново при открытии таблицы.
+public class RowFormatMigrator {
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) {
+        File berkeleyDbFolder = new File(args.length > 0 ? args[0] : "berkeley_db");
+        File schemaFile = new File(args.length > 1 ? args[1] : "schema.json");
+
+        File[] tableFolders = berkeleyDbFolder.listFiles(File::isDirectory);
+        if (tableFolders == null) {
+            System.err.println("Folder not found: " + berkeleyDbFolder);
+            return;
+        }
+
+        Map<String, Map<String, String>> schema = RowCodec.loadSchema(schemaFile);
+        if (schema.isEmpty()) {
+            System.out.println("No schema in " + schemaFile + ", column ordinals will follow the stored rows");
+        }
+
+        // Общее окружение (см. EnvironmentRegistry) открывается один раз для всех таблиц
+        if (EnvironmentRegistry.isSharedLayout(berkeleyDbFolder)) {
+            try (Environment environment = openEnvironment(berkeleyDbFolder)) {
+                for (String tableName : EnvironmentRegistry.getTableNames(environment)) {
+                    migrateTable(environment, tableName, schema);
+                }
+            }
+            return;
+        }
+
+        for (File tableFolder : tableFolders) {
+            try (Environment environment = openEnvironment(tableFolder)) {
+                migrateTable(environment, tableFolder.getName(), schema);
+            } catch (Exception e) {
+                System.err.println("Failed to open environment " + tableFolder);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Environment openEnvironment(File folder) {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(false);
+        envConfig.setTransactional(true);
+        return new Environment(folder, envConfig);
+    }
+
+    private static void migrateTable(Environment environment, String tableName, Map<String, Map<String, String>> schema) {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(false);
+        dbConfig.setTransactional(true);
+
+        List<String> indexNames = new ArrayList<>();
+        for (String databaseName : environment.getDatabaseNames()) {
+            if (EnvironmentRegistry.isIndexName(tableName, databaseName)) {
+                indexNames.add(databaseName);
+            }
+        }
+
+        try (Database database = environment.openDatabase(null, tableName, dbConfig)) {
+            RowCodec codec = RowCodec.open(environment, tableName, schema.getOrDefault(tableName, Collections.emptyMap()));
+            try {
+                long[] counts = new long[2];
+                byte[] lastKey = null;
+                do {
+                    lastKey = migrateBatch(environment, database, codec, lastKey, indexNames, counts);
+                } while (lastKey != null);
+
+                System.out.println(tableName + ": " + counts[0] + " rows converted, " + counts[1] + " already binary");
+            } finally {
+                codec.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to migrate table " + tableName);
+            e.printStackTrace();
+        }
+    }
+
+    // Одна транзакция на BATCH_SIZE строк; возвращает последний обработанный ключ или null в конце таблицы.
+    // indexNames удаляются в транзакции первой переписанной строки: после сбоя не останется
+    // ни переписанных строк при старых индексах, ни удалённых индексов при нетронутой таблице
+    private static byte[] migrateBatch(Environment environment, Database database, RowCodec codec,
+                                       byte[] lastKey, List<String> indexNames, long[] counts) {
+        Transaction txn = environment.beginTransaction(null, null);
+        try {
+            byte[] batchLastKey = null;
+            try (Cursor cursor = database.openCursor(txn, null)) {
+                DatabaseEntry keyEntry = new DatabaseEntry();
+                DatabaseEntry valueEntry = new DatabaseEntry();
+
+                OperationStatus status;
+                if (lastKey == null) {
+                    status = cursor.getFirst(keyEntry, valueEntry, LockMode.RMW);
+                } else {
+                    keyEntry.setData(lastKey);
+                    status = cursor.getSearchKeyRange(keyEntry, valueEntry, LockMode.RMW);
+                    if (status == OperationStatus.SUCCESS && Arrays.equals(keyEntry.getData(), lastKey)) {
+                        status = cursor.getNext(keyEntry, valueEntry, LockMode.RMW);
+                    }
+                }
+
+                for (int i = 0; i < BATCH_SIZE && status == OperationStatus.SUCCESS; i++) {
+                    byte[] data = valueEntry.getData();
+                    if (data.length > 0 && RowCodec.isLegacyJson(data, 0)) {
+                        for (String indexName : indexNames) {
+                            environment.removeDatabase(txn, indexName);
+                        }
+                        indexNames.clear();
+                        cursor.putCurrent(new DatabaseEntry(codec.encode(codec.decode(data))));
+                        counts[0]++;
+                    } else {
+                        counts[1]++;
+                    }
+                    batchLastKey = keyEntry.getData();
+                    status = cursor.getNext(keyEntry, valueEntry, LockMode.RMW);
+                }
+
+                if (status != OperationStatus.SUCCESS) {
+                    batchLastKey = null;
+                }
+            }
+            txn.commit();
+            return batchLastKey;
+        } finally {
+            if (txn.getState() == Transaction.State.OPEN) {
+                txn.abort();
+            }
+        }
+    }
+}
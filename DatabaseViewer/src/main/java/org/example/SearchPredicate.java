@@ -0,0 +1,127 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+// Условие команды SEARCH по одной колонке.
+// PREFIX и CONTAINS сравнивают текст без учёта регистра (как прежний фильтр клиента),
+// EQUALS и RANGE - ключи KeyEncoding.encodeValue, то есть в том же порядке, что и упорядоченный
+// индекс: проверка при обходе таблицы и поиск по индексу дают одинаковый результат.
+// Значения из поля ввода приводятся к типу колонки из schema.json (dataType); без схемы
+// похожие на числа и true/false строки пробуются и как число или логическое значение.
+public class SearchPredicate {
+    public enum Operator {
+        PREFIX, EQUALS, CONTAINS, RANGE
+    }
+
+    private final Operator operator;
+    private final String text;
+    private final List<byte[]> equalKeys = new ArrayList<>();
+    private final byte[] lowerKey;
+    private final byte[] upperKey;
+
+    public SearchPredicate(Operator operator, Object value, Object upperValue, String dataType) {
+        this.operator = operator;
+        this.text = value != null ? value.toString().toLowerCase(Locale.ROOT) : "";
+
+        if (operator == Operator.EQUALS) {
+            // Из поля ввода значение приходит строкой: "42" должно найти и число 42, и строку "42"
+            for (Object candidate : getCandidates(value, dataType)) {
+                equalKeys.add(KeyEncoding.encodeValue(candidate));
+            }
+        }
+        if (operator == Operator.RANGE) {
+            // Как в SQL, null не попадает ни в какой диапазон: false - наименьший ключ после null
+            lowerKey = KeyEncoding.encodeValue(value != null ? coerce(value, dataType) : Boolean.FALSE);
+            upperKey = upperValue != null ? KeyEncoding.encodeValue(coerce(upperValue, dataType)) : null;
+        } else {
+            lowerKey = null;
+            upperKey = null;
+        }
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    // Ключи упорядоченного индекса для EQUALS
+    public List<byte[]> getEqualKeys() {
+        return equalKeys;
+    }
+
+    // Границы RANGE включительно; верхняя null - без границы
+    public byte[] getLowerKey() {
+        return lowerKey;
+    }
+
+    public byte[] getUpperKey() {
+        return upperKey;
+    }
+
+    public boolean isAboveUpper(byte[] key) {
+        return upperKey != null && Arrays.compareUnsigned(key, upperKey) > 0;
+    }
+
+    public boolean matches(Object stored) {
+        switch (operator) {
+            case PREFIX:
+                return stored != null && stored.toString().toLowerCase(Locale.ROOT).startsWith(text);
+            case CONTAINS:
+                return stored != null && stored.toString().toLowerCase(Locale.ROOT).contains(text);
+            case EQUALS: {
+                byte[] key = KeyEncoding.encodeValue(stored);
+                for (byte[] equalKey : equalKeys) {
+                    if (Arrays.equals(key, equalKey)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            default: {
+                byte[] key = KeyEncoding.encodeValue(stored);
+                return Arrays.compareUnsigned(key, lowerKey) >= 0 && !isAboveUpper(key);
+            }
+        }
+    }
+
+    private static List<Object> getCandidates(Object value, String dataType) {
+        List<Object> candidates = new ArrayList<>();
+        candidates.add(value);
+        Object coerced = coerce(value, dataType);
+        if (coerced != value) {
+            candidates.add(coerced);
+        }
+        return candidates;
+    }
+
+    private static Object coerce(Object value, String dataType) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        String text = ((String) value).trim();
+        boolean isBoolean = text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false");
+        boolean isNumber = text.matches("-?\\d+(\\.\\d+)?");
+        if (dataType == null) {
+            return isBoolean ? Boolean.valueOf(text) : isNumber ? new BigDecimal(text) : value;
+        }
+
+        switch (dataType) {
+            case "smallint":
+            case "integer":
+            case "bigint":
+            case "real":
+            case "double precision":
+            case "numeric":
+                try {
+                    return new BigDecimal(text);
+                } catch (NumberFormatException e) {
+                    return value;
+                }
+            case "boolean":
+                return isBoolean ? Boolean.valueOf(text) : value;
+            default:
+                // Текст, даты и прочее хранятся строками: "100".."200" сравнивается как строки
+                return value;
+        }
+    }
+}
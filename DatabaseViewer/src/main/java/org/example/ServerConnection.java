@@ -0,0 +1,181 @@
+package org.example;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Одно долгоживущее соединение с сервером: запросы помечаются id, несколько запросов
+// могут быть в полёте одновременно, при обрыве соединение переоткрывается
+public class ServerConnection implements AutoCloseable {
+    private static final long RESPONSE_TIMEOUT_SECONDS = 60;
+
+    private final String host;
+    private final int port;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<>();
+    // Части потоковых ответов (WireProtocol.FLAG_MORE), ещё не дошедших до последнего кадра
+    private final Map<Long, List<Object>> partialResponses = new ConcurrentHashMap<>();
+
+    private Socket socket;
+    private DataOutputStream out;
+    private boolean closed;
+
+    public ServerConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public Object send(String command, Object... args) throws IOException {
+        return await(sendAsync(command, args), command);
+    }
+
+    // Ожидание ответа на запрос из sendAsync с теми же таймаутом и исключениями, что и у send
+    public Object await(CompletableFuture<Object> response, String command) throws IOException {
+        try {
+            return response.get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            response.cancel(false);
+            throw new IOException("No response from server for " + command, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + command);
+        }
+    }
+
+    public CompletableFuture<Object> sendAsync(String command, Object... args) {
+        CompletableFuture<Object> response = new CompletableFuture<>();
+        long requestId = nextRequestId.incrementAndGet();
+        // Таймаут в await и отмена вызывающим кодом: ответ уже никто не ждёт,
+        // поэтому запрос и накопленные части потокового ответа забываются
+        response.whenComplete((result, failure) -> {
+            if (response.isCancelled()) {
+                pendingRequests.remove(requestId);
+                partialResponses.remove(requestId);
+            }
+        });
+        byte[] frame;
+        try {
+            frame = WireProtocol.encodeRequest(requestId, command, Arrays.asList(args));
+        } catch (IOException | IllegalArgumentException e) {
+            response.completeExceptionally(e);
+            return response;
+        }
+
+        synchronized (this) {
+            IOException failure = new IOException("Connection is closed");
+            // Вторая попытка - на случай, если сервер закрыл соединение, пока оно простаивало
+            for (int attempt = 0; attempt < 2 && !closed; attempt++) {
+                try {
+                    DataOutputStream stream = connect();
+                    pendingRequests.put(requestId, response);
+                    stream.write(frame);
+                    stream.flush();
+                    return response;
+                } catch (IOException e) {
+                    pendingRequests.remove(requestId);
+                    failure = e;
+                    disconnect(socket, e);
+                }
+            }
+            response.completeExceptionally(failure);
+        }
+        return response;
+    }
+
+    private DataOutputStream connect() throws IOException {
+        if (socket != null) {
+            return out;
+        }
+
+        Socket newSocket = new Socket(host, port);
+        try {
+            newSocket.setTcpNoDelay(true);
+            DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+
+            Thread reader = new Thread(() -> readResponses(newSocket, in), "server-connection-reader");
+            reader.setDaemon(true);
+
+            socket = newSocket;
+            out = newOut;
+            reader.start();
+            return out;
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+    }
+
+    private void readResponses(Socket readerSocket, DataInputStream in) {
+        try {
+            WireProtocol.Frame frame;
+            while ((frame = WireProtocol.readFrame(in)) != null) {
+                if (frame.hasMore()) {
+                    // Части ответа на отменённый запрос не накапливаются
+                    if (!pendingRequests.containsKey(frame.getRequestId())) {
+                        continue;
+                    }
+                    partialResponses.computeIfAbsent(frame.getRequestId(), requestId -> new ArrayList<>())
+                            .addAll((List<?>) frame.readResponse());
+                    continue;
+                }
+
+                // Последний кадр-список дописывается к накопленным частям; строка вместо
+                // списка - ошибка посреди потока, и части отбрасываются
+                Object response = frame.readResponse();
+                List<Object> partial = partialResponses.remove(frame.getRequestId());
+                if (partial != null && response instanceof List) {
+                    partial.addAll((List<?>) response);
+                    response = partial;
+                }
+
+                CompletableFuture<Object> future = pendingRequests.remove(frame.getRequestId());
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+            disconnect(readerSocket, new EOFException("Server closed the connection"));
+        } catch (IOException e) {
+            disconnect(readerSocket, e);
+        }
+    }
+
+    private synchronized void disconnect(Socket failedSocket, Exception cause) {
+        if (failedSocket == null || failedSocket != socket) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        socket = null;
+        out = null;
+        partialResponses.clear();
+
+        IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        for (Long requestId : new ArrayList<>(pendingRequests.keySet())) {
+            CompletableFuture<Object> future = pendingRequests.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        disconnect(socket, new IOException("Connection is closed"));
+    }
+}
@@ -0,0 +1,211 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sleepycat.je.EnvironmentStats;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Счётчики сервера по командам: число запросов, ошибки, байты кадров и гистограмма задержек
+// от получения кадра до отправки ответа. Запись - только LongAdder и атомарный счётчик корзины,
+// без блокировок; снимок собирается при запросе STATS или /metrics.
+public class ServerMetrics {
+    // Имена команд приходят от клиента: неизвестные сверх этого числа считаются вместе
+    private static final int MAX_COMMANDS = 64;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final long startedAt = System.currentTimeMillis();
+    private final LongAdder inFlight = new LongAdder();
+    private final Map<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+
+    public void requestStarted(String command, int bytesIn) {
+        inFlight.increment();
+        CommandMetrics metrics = getCommand(command);
+        metrics.count.increment();
+        metrics.bytesIn.add(bytesIn);
+    }
+
+    public void requestFinished(String command, long elapsedNanos) {
+        inFlight.decrement();
+        getCommand(command).latency.record(elapsedNanos / 1000);
+    }
+
+    public void responseSent(String command, int bytesOut) {
+        getCommand(command).bytesOut.add(bytesOut);
+    }
+
+    public void requestFailed(String command) {
+        getCommand(command).errors.increment();
+    }
+
+    private CommandMetrics getCommand(String command) {
+        CommandMetrics metrics = commands.get(command);
+        if (metrics == null) {
+            if (commands.size() >= MAX_COMMANDS) {
+                command = "OTHER";
+            }
+            metrics = commands.computeIfAbsent(command, name -> new CommandMetrics());
+        }
+        return metrics;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("uptimeSeconds", (System.currentTimeMillis() - startedAt) / 1000);
+        stats.put("inFlight", inFlight.sum());
+
+        Map<String, Object> commandStats = new TreeMap<>();
+        for (Map.Entry<String, CommandMetrics> command : commands.entrySet()) {
+            commandStats.put(command.getKey(), command.getValue().getStats());
+        }
+        stats.put("commands", commandStats);
+        return stats;
+    }
+
+    // Показатели кэша, вытеснения и очистки журнала одного окружения JE.
+    // При общем кэше (EnvironmentRegistry) размер и вытеснение общие для всех окружений
+    public static Map<String, Object> describe(EnvironmentStats environmentStats) {
+        long fetches = environmentStats.getNLNsFetch() + environmentStats.getNBINsFetch() + environmentStats.getNUpperINsFetch();
+        long misses = environmentStats.getNLNsFetchMiss() + environmentStats.getNBINsFetchMiss() + environmentStats.getNUpperINsFetchMiss();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cacheBytes", environmentStats.getCacheTotalBytes());
+        stats.put("sharedCacheBytes", environmentStats.getSharedCacheTotalBytes());
+        stats.put("cacheHitRatio", fetches > 0 ? 1.0 - (double) misses / fetches : 1.0);
+        stats.put("cacheMisses", environmentStats.getNCacheMiss());
+        stats.put("nodesEvicted", environmentStats.getNNodesEvicted());
+        stats.put("evictionRuns", environmentStats.getNEvictionRuns());
+        // Отставание очистки: журнал, который ещё не освобождён (защищён или зарезервирован)
+        stats.put("protectedLogBytes", environmentStats.getProtectedLogSize());
+        stats.put("reservedLogBytes", environmentStats.getReservedLogSize());
+        stats.put("cleanerRuns", environmentStats.getNCleanerRuns());
+        stats.put("minUtilizationPercent", environmentStats.getCurrentMinUtilization());
+        stats.put("maxUtilizationPercent", environmentStats.getCurrentMaxUtilization());
+        stats.put("totalLogBytes", environmentStats.getTotalLogSize());
+        stats.put("activeLogBytes", environmentStats.getActiveLogSize());
+        return stats;
+    }
+
+    // GET /metrics - те же данные, что и у команды STATS, в JSON
+    public static HttpServer startHttpServer(int port, Supplier<Map<String, Object>> stats) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                byte[] body;
+                int status;
+                try {
+                    body = MAPPER.writeValueAsBytes(stats.get());
+                    status = 200;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    body = "ERROR".getBytes(StandardCharsets.UTF_8);
+                    status = 500;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static class CommandMetrics {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", count.sum());
+            stats.put("errors", errors.sum());
+            stats.put("bytesIn", bytesIn.sum());
+            stats.put("bytesOut", bytesOut.sum());
+            stats.putAll(latency.getPercentiles());
+            return stats;
+        }
+    }
+
+    // Задержки в микросекундах: до 16 мкс - корзина на значение, дальше по 8 корзин на каждую
+    // степень двойки, то есть погрешность перцентиля не больше 12.5%
+    static class LatencyHistogram {
+        private static final int LINEAR_BUCKETS = 16;
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4 + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long micros) {
+            counts.incrementAndGet(getBucket(Math.max(0, micros)));
+        }
+
+        Map<String, Object> getPercentiles() {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            int last = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+                if (snapshot[i] > 0) {
+                    last = i;
+                }
+            }
+
+            Map<String, Object> percentiles = new LinkedHashMap<>();
+            percentiles.put("p50Micros", getPercentile(snapshot, total, 0.5));
+            percentiles.put("p99Micros", getPercentile(snapshot, total, 0.99));
+            percentiles.put("p999Micros", getPercentile(snapshot, total, 0.999));
+            percentiles.put("maxMicros", last >= 0 ? getUpperBound(last) : 0);
+            return percentiles;
+        }
+
+        private static long getPercentile(long[] snapshot, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return getUpperBound(i);
+                }
+            }
+            return getUpperBound(snapshot.length - 1);
+        }
+
+        static int getBucket(long micros) {
+            if (micros < LINEAR_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) ((micros >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+            return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+        }
+
+        // Наибольшее значение, попадающее в корзину
+        static long getUpperBound(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+            int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            if (exponent >= 62) {
+                return Long.MAX_VALUE;
+            }
+            return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 3)) - 1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.example;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Переводит berkeley_db из размещения "окружение на таблицу" в одно общее окружение
+// (см. EnvironmentRegistry). Копируются все базы таблицы ("<таблица>" и "<таблица>.*": словарь
+// колонок RowCodec, состояние IncrementalSync), кроме индексов - их сервер построит заново
+// при первом открытии таблицы.
+// Запуск при остановленном сервере: StorageLayoutMigrator [папка berkeley_db]
+// Новое окружение собирается в <папка>.shared, старое после копирования переименовывается
+// в <папка>.per-table и остаётся резервной копией. После сбоя миграцию можно просто перезапустить.
+public class StorageLayoutMigrator {
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) {
+        File berkeleyDbFolder = new File(args.length > 0 ? args[0] : "berkeley_db").getAbsoluteFile();
+
+        File[] tableFolders = berkeleyDbFolder.listFiles(File::isDirectory);
+        if (tableFolders == null) {
+            System.err.println("Folder not found: " + berkeleyDbFolder);
+            return;
+        }
+        if (EnvironmentRegistry.isSharedLayout(berkeleyDbFolder)) {
+            System.out.println(berkeleyDbFolder + " already uses the shared layout");
+            return;
+        }
+
+        File sharedFolder = new File(berkeleyDbFolder.getParentFile(), berkeleyDbFolder.getName() + ".shared");
+        File backupFolder = new File(berkeleyDbFolder.getParentFile(), berkeleyDbFolder.getName() + ".per-table");
+        if (backupFolder.exists()) {
+            System.err.println("Backup folder already exists: " + backupFolder);
+            return;
+        }
+
+        try {
+            // Остатки прерванной миграции
+            deleteRecursively(sharedFolder.toPath());
+            sharedFolder.mkdir();
+
+            EnvironmentConfig envConfig = new EnvironmentConfig();
+            envConfig.setAllowCreate(true);
+            envConfig.setTransactional(true);
+            try (Environment sharedEnvironment = new Environment(sharedFolder, envConfig)) {
+                for (File tableFolder : tableFolders) {
+                    copyTable(tableFolder, tableFolder.getName(), sharedEnvironment);
+                }
+                sharedEnvironment.flushLog(true);
+            }
+
+            Files.move(berkeleyDbFolder.toPath(), backupFolder.toPath());
+            Files.move(sharedFolder.toPath(), berkeleyDbFolder.toPath());
+            System.out.println("Shared environment is in " + berkeleyDbFolder + ", old layout kept in " + backupFolder);
+        } catch (Exception e) {
+            System.err.println("Migration failed, " + berkeleyDbFolder + " is unchanged");
+            e.printStackTrace();
+        }
+    }
+
+    private static void copyTable(File tableFolder, String tableName, Environment sharedEnvironment) {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(false);
+        envConfig.setReadOnly(true);
+
+        try (Environment environment = new Environment(tableFolder, envConfig)) {
+            for (String databaseName : environment.getDatabaseNames()) {
+                if (databaseName.equals(tableName)
+                        || (databaseName.startsWith(tableName + ".") && !EnvironmentRegistry.isIndexName(tableName, databaseName))) {
+                    long rows = copyDatabase(environment, sharedEnvironment, databaseName);
+                    System.out.println(databaseName + ": " + rows + " records copied");
+                }
+            }
+        }
+    }
+
+    // Записи идут в порядке ключей, транзакциями по BATCH_SIZE без ожидания диска;
+    // журнал сбрасывается один раз в конце
+    private static long copyDatabase(Environment source, Environment target, String databaseName) {
+        DatabaseConfig sourceConfig = new DatabaseConfig();
+        sourceConfig.setReadOnly(true);
+
+        DatabaseConfig targetConfig = new DatabaseConfig();
+        targetConfig.setAllowCreate(true);
+        targetConfig.setExclusiveCreate(true);
+        targetConfig.setTransactional(true);
+
+        long copied = 0;
+        try (Database sourceDb = source.openDatabase(null, databaseName, sourceConfig);
+             Database targetDb = target.openDatabase(null, databaseName, targetConfig);
+             Cursor cursor = sourceDb.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+
+            OperationStatus status = cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
+            while (status == OperationStatus.SUCCESS) {
+                Transaction txn = target.beginTransaction(null, null);
+                try {
+                    for (int i = 0; i < BATCH_SIZE && status == OperationStatus.SUCCESS; i++) {
+                        targetDb.put(txn, keyEntry, valueEntry);
+                        copied++;
+                        status = cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
+                    }
+                    txn.commitNoSync();
+                } finally {
+                    if (txn.getState() == Transaction.State.OPEN) {
+                        txn.abort();
+                    }
+                }
+            }
+        }
+        return copied;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.example;
+
+import java.util.Map;
+
+// Откуда IncrementalSync читает строки. Строка - колонки по именам, как у DatabaseExporter.readRow.
+// Порядок readOrdered - байты UTF-8 строкового значения первичного ключа: в нём же лежат ключи
+// базы "<таблица>.sync", и слияние с ней идёт одним проходом
+public interface SyncSource {
+    // null, если у таблицы нет первичного ключа
+    String getPrimaryKey(String tableName) throws Exception;
+
+    // Все строки (withRows) или только первичные ключи (строки из одной колонки) в порядке ключей
+    void readOrdered(String tableName, String primaryKey, boolean withRows, RowHandler handler) throws Exception;
+
+    // Строки, у которых updatedAtColumn не раньше watermark; при watermark == null - все
+    void readChanged(String tableName, String updatedAtColumn, String watermark, RowHandler handler) throws Exception;
+
+    interface RowHandler {
+        void accept(Map<String, Object> row) throws Exception;
+    }
+}
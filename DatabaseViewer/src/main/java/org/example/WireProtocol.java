@@ -0,0 +1,334 @@
+package org.example;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.*;
+
+// Бинарный протокол клиент-сервер.
+// Кадр: [int длина][byte версия][byte флаги][long id запроса][тело]
+// Тело запроса: строка-команда, затем список аргументов; тело ответа: одно значение.
+// Ответ может идти несколькими кадрами-списками: у всех, кроме последнего, стоит FLAG_MORE.
+// Каждое значение начинается с байта-тега типа.
+public final class WireProtocol {
+    public static final byte VERSION = 1;
+    public static final byte FLAG_MORE = 1;
+    private static final int HEADER_SIZE = 1 + 1 + 8;
+    private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_LIST = 7;
+    private static final byte TAG_MAP = 8;
+    private static final byte TAG_TIMESTAMP = 9;
+    private static final byte TAG_DECIMAL = 10;
+
+    private WireProtocol() {
+    }
+
+    public static class Frame {
+        private final byte flags;
+        private final long requestId;
+        private final byte[] body;
+
+        Frame(byte flags, long requestId, byte[] body) {
+            this.flags = flags;
+            this.requestId = requestId;
+            this.body = body;
+        }
+
+        public byte getFlags() {
+            return flags;
+        }
+
+        public long getRequestId() {
+            return requestId;
+        }
+
+        public boolean hasMore() {
+            return (flags & FLAG_MORE) != 0;
+        }
+
+        public int size() {
+            return 4 + HEADER_SIZE + body.length;
+        }
+
+        public String readCommand(List<Object> args) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            String command = readString(in);
+            int count = readCount(in);
+            for (int i = 0; i < count; i++) {
+                args.add(readValue(in));
+            }
+            return command;
+        }
+
+        public Object readResponse() throws IOException {
+            return readValue(new DataInputStream(new ByteArrayInputStream(body)));
+        }
+    }
+
+    // Значение, закодированное заранее (кэш ответов сервера): в кадр копируется как есть
+    public static final class EncodedValue {
+        private final byte[] bytes;
+
+        private EncodedValue(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int size() {
+            return bytes.length;
+        }
+    }
+
+    public static EncodedValue encodeValue(Object value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        writeValue(new DataOutputStream(buffer), value);
+        return new EncodedValue(buffer.toByteArray());
+    }
+
+    public static byte[] encodeRequest(long requestId, String command, List<Object> args) throws IOException {
+        FrameBuilder frame = new FrameBuilder((byte) 0, requestId, 0);
+        writeString(frame.out, command);
+        writeCount(frame.out, args.size());
+        for (Object arg : args) {
+            writeValue(frame.out, arg);
+        }
+        return frame.toByteArray();
+    }
+
+    public static byte[] encodeResponse(long requestId, Object response) throws IOException {
+        return encodeResponse(requestId, response, false);
+    }
+
+    // more - за этим кадром последуют другие части того же ответа
+    public static byte[] encodeResponse(long requestId, Object response, boolean more) throws IOException {
+        int sizeHint = response instanceof EncodedValue ? ((EncodedValue) response).size() : 0;
+        FrameBuilder frame = new FrameBuilder(more ? FLAG_MORE : 0, requestId, sizeHint);
+        writeValue(frame.out, response);
+        return frame.toByteArray();
+    }
+
+    // null, если соединение закрыто между кадрами
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported protocol version: " + version);
+        }
+        byte flags = in.readByte();
+        long requestId = in.readLong();
+
+        byte[] body = new byte[length - HEADER_SIZE];
+        in.readFully(body);
+        return new Frame(flags, requestId, body);
+    }
+
+    public static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof EncodedValue) {
+            out.write(((EncodedValue) value).bytes);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            out.writeByte(TAG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Date) {
+            out.writeByte(TAG_TIMESTAMP);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.writeByte(TAG_LIST);
+            writeCount(out, list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TAG_MAP);
+            writeCount(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    public static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_DECIMAL:
+                return new BigDecimal(readString(in));
+            case TAG_STRING:
+                return readString(in);
+            case TAG_TIMESTAMP:
+                return new Timestamp(in.readLong());
+            case TAG_LIST: {
+                int count = readCount(in);
+                List<Object> list = new ArrayList<>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                int count = readCount(in);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value tag: " + tag);
+        }
+    }
+
+    // Пропуск значения без создания объектов (чтение только нужных колонок строки)
+    static void skipValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+            case TAG_TRUE:
+            case TAG_FALSE:
+                return;
+            case TAG_INT:
+                in.skipNBytes(4);
+                return;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+            case TAG_TIMESTAMP:
+                in.skipNBytes(8);
+                return;
+            case TAG_DECIMAL:
+            case TAG_STRING:
+                in.skipNBytes(readCount(in));
+                return;
+            case TAG_LIST: {
+                int count = readCount(in);
+                for (int i = 0; i < count; i++) {
+                    skipValue(in);
+                }
+                return;
+            }
+            case TAG_MAP: {
+                int count = readCount(in);
+                for (int i = 0; i < count; i++) {
+                    in.skipNBytes(readCount(in));
+                    skipValue(in);
+                }
+                return;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value tag: " + tag);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeCount(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        if (length > in.available()) {
+            throw new StreamCorruptedException("String length exceeds frame: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Беззнаковый varint: короткие строки и списки обходятся одним байтом длины
+    static void writeCount(DataOutputStream out, int count) throws IOException {
+        while ((count & ~0x7F) != 0) {
+            out.writeByte((count & 0x7F) | 0x80);
+            count >>>= 7;
+        }
+        out.writeByte(count);
+    }
+
+    static int readCount(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (result < 0) {
+                    throw new StreamCorruptedException("Negative length");
+                }
+                return result;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private static class FrameBuilder {
+        private final ByteArrayOutputStream buffer;
+        private final DataOutputStream out;
+
+        FrameBuilder(byte flags, long requestId, int bodySizeHint) throws IOException {
+            buffer = new ByteArrayOutputStream(4 + HEADER_SIZE + Math.max(bodySizeHint, 242));
+            out = new DataOutputStream(buffer);
+            out.writeInt(0); // длина, заполняется в toByteArray
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeLong(requestId);
+        }
+
+        byte[] toByteArray() {
+            byte[] frame = buffer.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationTest {
+    private static final List<String> SPECS = List.of("COUNT(*)", "count(price)", "SUM(price)", "MIN(price)", "MAX(price)", "AVG(price)");
+
+    @Test
+    void averageIgnoresNullsAndNonNumbers() {
+        Aggregation aggregation = new Aggregation(null, List.of("AVG(price)", "COUNT(price)", "COUNT(*)", "SUM(price)"));
+        aggregation.add(row("a", 1));
+        aggregation.add(row("a", 2L));
+        // Значения из ADD_ROW приходят строками
+        aggregation.add(row("a", " 0.5 "));
+        aggregation.add(row("a", null));
+        aggregation.add(row("a", "n/a"));
+
+        List<List<Object>> result = aggregation.getResult();
+        assertEquals(List.of("AVG(price)", "COUNT(price)", "COUNT(*)", "SUM(price)"), result.get(0));
+        // COUNT(колонка) считает непустые значения, AVG и SUM - только числа
+        assertEquals(3.5 / 3, (Double) result.get(1).get(0), 1e-12);
+        assertEquals(4L, result.get(1).get(1));
+        assertEquals(5L, result.get(1).get(2));
+        assertEquals(0, new BigDecimal("3.5").compareTo((BigDecimal) result.get(1).get(3)));
+    }
+
+    // Без группировки строка результата одна, даже если строк не было
+    @Test
+    void emptyTableGivesOneRowOfEmptyAggregates() {
+        List<List<Object>> result = new Aggregation(null, SPECS).getResult();
+        assertEquals(List.of("COUNT(*)", "COUNT(price)", "SUM(price)", "MIN(price)", "MAX(price)", "AVG(price)"), result.get(0));
+        assertEquals(Arrays.asList(0L, 0L, null, null, null, null), result.get(1));
+
+        assertEquals(1, new Aggregation("city", SPECS).getResult().size());
+    }
+
+    @Test
+    void integerSumSwitchesToDecimalOnOverflow() {
+        Aggregation aggregation = new Aggregation(null, List.of("SUM(price)", "AVG(price)"));
+        aggregation.add(row("a", Long.MAX_VALUE));
+        aggregation.add(row("a", Long.MAX_VALUE));
+        aggregation.add(row("a", 2));
+
+        List<Object> totals = aggregation.getResult().get(1);
+        assertEquals(new BigDecimal(Long.MAX_VALUE).multiply(BigDecimal.valueOf(2)).add(BigDecimal.valueOf(2)), totals.get(0));
+        assertEquals(2.0 * Long.MAX_VALUE / 3, (Double) totals.get(1), 1e3);
+    }
+
+    // Части, посчитанные по разным диапазонам ключей, дают тот же результат, что и один проход
+    @Test
+    void mergedPartialsMatchASinglePass() {
+        Random random = new Random(7);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        List<String> cities = Arrays.asList("Минск", "Брест", null, "Гродно");
+        for (int i = 0; i < 1000; i++) {
+            Object price;
+            switch (random.nextInt(5)) {
+                case 0:
+                    price = null;
+                    break;
+                case 1:
+                    price = random.nextInt(1000) - 500;
+                    break;
+                case 2:
+                    price = BigDecimal.valueOf(random.nextInt(100_000), 2);
+                    break;
+                case 3:
+                    price = String.valueOf(random.nextInt(1000));
+                    break;
+                default:
+                    price = (long) random.nextInt(1_000_000);
+            }
+            rows.add(row(cities.get(random.nextInt(cities.size())), price));
+        }
+
+        Aggregation single = new Aggregation("city", SPECS);
+        rows.forEach(single::add);
+
+        Aggregation merged = new Aggregation("city", SPECS);
+        for (int from = 0; from < rows.size(); from += 300) {
+            Aggregation partial = merged.newPartial();
+            rows.subList(from, Math.min(from + 300, rows.size())).forEach(partial::add);
+            merged.merge(partial);
+        }
+
+        List<List<Object>> expected = single.getResult();
+        List<List<Object>> actual = merged.getResult();
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.get(0), actual.get(0));
+        for (int i = 1; i < expected.size(); i++) {
+            List<Object> expectedRow = expected.get(i);
+            List<Object> actualRow = actual.get(i);
+            for (int column = 0; column < expectedRow.size(); column++) {
+                Object expectedValue = expectedRow.get(column);
+                Object actualValue = actualRow.get(column);
+                if (expectedValue instanceof BigDecimal) {
+                    assertEquals(0, ((BigDecimal) expectedValue).compareTo((BigDecimal) actualValue), expectedRow.toString());
+                } else if (expectedValue instanceof Double) {
+                    assertEquals((Double) expectedValue, (Double) actualValue, 1e-9, expectedRow.toString());
+                } else {
+                    assertEquals(expectedValue, actualValue, expectedRow.toString());
+                }
+            }
+        }
+        // Группы в порядке упорядоченного индекса: null первым
+        assertNull(actual.get(1).get(0));
+    }
+
+    @Test
+    void minAndMaxCompareNumbersOfDifferentTypes() {
+        Aggregation left = new Aggregation(null, List.of("MIN(price)", "MAX(price)"));
+        left.add(row("a", 10));
+        left.add(row("a", new BigDecimal("9.5")));
+        Aggregation right = left.newPartial();
+        right.add(row("a", 10.25));
+        right.add(row("a", -3L));
+        left.merge(right);
+
+        assertEquals(List.of(-3L, 10.25), left.getResult().get(1));
+    }
+
+    @Test
+    void invalidSpecsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Aggregation(null, List.of("SUM(*)")));
+        assertThrows(IllegalArgumentException.class, () -> new Aggregation(null, List.of("MEDIAN(price)")));
+        assertThrows(IllegalArgumentException.class, () -> new Aggregation(null, List.of("price")));
+    }
+
+    private static Map<String, Object> row(String city, Object price) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("city", city);
+        row.put("price", price);
+        return row;
+    }
+}
@@ -0,0 +1,221 @@
+package org.example;
+
+import com.sleepycat.je.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalSyncTest {
+    private static final String TABLE = "items";
+    private static final String PRIMARY_KEY = "item_id";
+    private static final Map<String, String> WITH_UPDATED_AT = Map.of("updated_at", "timestamp");
+
+    @TempDir
+    File tempFolder;
+
+    private EnvironmentRegistry registry;
+    private EnvironmentRegistry.TableHandle table;
+    private MemorySource source;
+
+    @BeforeEach
+    void setUp() {
+        File berkeleyDbFolder = new File(tempFolder, "berkeley_db");
+        File tableFolder = new File(berkeleyDbFolder, TABLE);
+        assertTrue(tableFolder.mkdirs());
+
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        try (Environment environment = new Environment(tableFolder, envConfig)) {
+            environment.openDatabase(null, TABLE, dbConfig).close();
+        }
+
+        registry = new EnvironmentRegistry(berkeleyDbFolder);
+        table = registry.getTable(TABLE);
+        source = new MemorySource();
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.close();
+    }
+
+    // Ключи сливаются в порядке байтов: "1" < "10" < "11" < "12" < "2" < ... < "9"
+    @Test
+    void rowHashMergeAppliesChangesAcrossBatchBoundaries() throws Exception {
+        for (int id = 1; id <= 12; id++) {
+            source.put(id, "item " + id, null);
+        }
+        assertEquals(counts(12, 0, 0, 0), sync(Collections.emptyMap(), 3));
+        assertEquals(source.getNames(), getStoredNames());
+
+        // Удаления первого и последнего ключа, обновления и вставки по обе стороны
+        // от границ пакетов по 3 изменения
+        source.remove(1);
+        source.put(10, "item 10 renamed", null);
+        source.put(11, "item 11 renamed", null);
+        source.remove(12);
+        source.put(13, "item 13", null);
+        source.put(4, "item 4 renamed", null);
+        source.remove(9);
+        source.put(99, "item 99", null);
+        assertEquals(counts(2, 3, 3, 6), sync(Collections.emptyMap(), 3));
+        assertEquals(source.getNames(), getStoredNames());
+
+        assertEquals(counts(0, 0, 0, 11), sync(Collections.emptyMap(), 3));
+    }
+
+    @Test
+    void watermarkReadsOnlyChangedRowsAndFindsDeletesByKeys() throws Exception {
+        for (int id = 1; id <= 7; id++) {
+            source.put(id, "item " + id, "2024-01-01 10:00:00");
+        }
+        assertEquals(counts(7, 0, 0, 0), sync(WITH_UPDATED_AT, 2));
+        assertEquals("2024-01-01 10:00:00", readWatermark());
+
+        source.remove(1);
+        source.put(2, "item 2 renamed", "2024-01-02 10:00:00");
+        source.put(6, "item 6 renamed", "2024-01-02 10:00:00");
+        source.remove(7);
+        source.put(8, "item 8", "2024-01-02 11:00:00");
+        source.changedRows = 0;
+        // Сравнение с меткой нестрогое: строки 3, 4 и 5 с той же меткой читаются ещё раз
+        assertEquals(counts(1, 2, 2, 3), sync(WITH_UPDATED_AT, 2));
+        assertEquals(6, source.changedRows);
+        assertEquals("2024-01-02 11:00:00", readWatermark());
+        assertEquals(source.getNames(), getStoredNames());
+
+        source.changedRows = 0;
+        assertEquals(counts(0, 0, 0, 1), sync(WITH_UPDATED_AT, 2));
+        assertEquals(1, source.changedRows);
+    }
+
+    // Первый запуск после полного экспорта: хэшей ещё нет, поэтому все строки перезаписываются,
+    // а строки, которых в источнике уже нет, удаляются
+    @Test
+    void firstSyncAfterExportRewritesRowsAndDeletesMissing() throws Exception {
+        for (int id = 1; id <= 5; id++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put(PRIMARY_KEY, id);
+            row.put("name", "exported " + id);
+            table.getDatabase().put(null, new DatabaseEntry(table.encodeKey(id)), new DatabaseEntry(table.getCodec().encode(row)));
+        }
+        source.put(2, "item 2", null);
+        source.put(3, "exported 3", null);
+        source.put(6, "item 6", null);
+
+        assertEquals(counts(1, 2, 3, 0), sync(Collections.emptyMap(), 2));
+        assertEquals(source.getNames(), getStoredNames());
+    }
+
+    @Test
+    void unorderedSourceIsRejected() {
+        source.put(1, "item 1", null);
+        source.put(2, "item 2", null);
+        source.reversed = true;
+
+        assertThrows(IllegalStateException.class, () -> sync(Collections.emptyMap(), 10));
+    }
+
+    private Map<String, Long> sync(Map<String, String> columnTypes, int batchSize) throws Exception {
+        return IncrementalSync.syncTable(source, table, columnTypes, batchSize);
+    }
+
+    private static Map<String, Long> counts(long inserted, long updated, long deleted, long unchanged) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counts.put("inserted", inserted);
+        counts.put("updated", updated);
+        counts.put("deleted", deleted);
+        counts.put("unchanged", unchanged);
+        return counts;
+    }
+
+    private Map<String, String> getStoredNames() {
+        Map<String, String> names = new TreeMap<>();
+        try (Cursor cursor = table.getDatabase().openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            while (cursor.getNext(keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+                Map<String, Object> row = table.getCodec().decode(valueEntry.getData());
+                names.put(KeyEncoding.keyToString(keyEntry.getData()), String.valueOf(row.get("name")));
+            }
+        }
+        return names;
+    }
+
+    private String readWatermark() {
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setTransactional(true);
+        try (Database watermarkDb = table.getEnvironment().openDatabase(null, TABLE + ".watermark", dbConfig)) {
+            return IncrementalSync.readWatermark(watermarkDb);
+        }
+    }
+
+    // Строки в порядке байтов UTF-8 ключа, как их отдаёт JdbcSyncSource
+    private static class MemorySource implements SyncSource {
+        private final TreeMap<String, Map<String, Object>> rows = new TreeMap<>(
+                (left, right) -> Arrays.compareUnsigned(left.getBytes(StandardCharsets.UTF_8), right.getBytes(StandardCharsets.UTF_8)));
+        private boolean reversed;
+        private int changedRows;
+
+        void put(int id, String name, String updatedAt) {
+            Map<String, Object> row = new HashMap<>();
+            row.put(PRIMARY_KEY, id);
+            row.put("name", name);
+            if (updatedAt != null) {
+                row.put("updated_at", updatedAt);
+            }
+            rows.put(String.valueOf(id), row);
+        }
+
+        void remove(int id) {
+            rows.remove(String.valueOf(id));
+        }
+
+        Map<String, String> getNames() {
+            Map<String, String> names = new TreeMap<>();
+            for (Map.Entry<String, Map<String, Object>> row : rows.entrySet()) {
+                names.put(row.getKey(), (String) row.getValue().get("name"));
+            }
+            return names;
+        }
+
+        @Override
+        public String getPrimaryKey(String tableName) {
+            return PRIMARY_KEY;
+        }
+
+        @Override
+        public void readOrdered(String tableName, String primaryKey, boolean withRows, RowHandler handler) throws Exception {
+            for (Map<String, Object> row : reversed ? rows.descendingMap().values() : rows.values()) {
+                Map<String, Object> result = new HashMap<>();
+                if (withRows) {
+                    result.putAll(row);
+                } else {
+                    result.put(primaryKey, row.get(primaryKey));
+                }
+                handler.accept(result);
+            }
+        }
+
+        @Override
+        public void readChanged(String tableName, String updatedAtColumn, String watermark, RowHandler handler) throws Exception {
+            for (Map<String, Object> row : rows.values()) {
+                if (watermark == null || row.get(updatedAtColumn).toString().compareTo(watermark) >= 0) {
+                    changedRows++;
+                    handler.accept(new HashMap<>(row));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyEncodingTest {
+    @Test
+    void numbersSortByExactValue() {
+        List<Object> ascending = List.of(
+                Double.NEGATIVE_INFINITY,
+                new BigDecimal("-1e30"),
+                Long.MIN_VALUE,
+                -9007199254740993L,
+                -9007199254740992L,
+                -100,
+                new BigDecimal("-1.55"),
+                -1.5,
+                -1,
+                new BigDecimal("-0.001"),
+                0,
+                new BigDecimal("0.001"),
+                0.1,
+                1,
+                1.5f,
+                new BigDecimal("1.55"),
+                100,
+                9007199254740992L,
+                9007199254740993L,
+                Long.MAX_VALUE,
+                new BigInteger("9223372036854775808"),
+                new BigDecimal("1e30"),
+                Double.POSITIVE_INFINITY,
+                Double.NaN);
+
+        for (int i = 1; i < ascending.size(); i++) {
+            byte[] previous = KeyEncoding.encodeValue(ascending.get(i - 1));
+            byte[] current = KeyEncoding.encodeValue(ascending.get(i));
+            assertTrue(Arrays.compareUnsigned(previous, current) < 0,
+                    ascending.get(i - 1) + " should sort before " + ascending.get(i));
+        }
+    }
+
+    @Test
+    void equalNumbersOfDifferentTypesEncodeTheSame() {
+        assertArrayEquals(KeyEncoding.encodeValue(100), KeyEncoding.encodeValue(100L));
+        assertArrayEquals(KeyEncoding.encodeValue(100), KeyEncoding.encodeValue(new BigDecimal("100.00")));
+        assertArrayEquals(KeyEncoding.encodeValue(100), KeyEncoding.encodeValue(100.0));
+        assertArrayEquals(KeyEncoding.encodeValue(0.1), KeyEncoding.encodeValue(new BigDecimal("0.1")));
+        assertArrayEquals(KeyEncoding.encodeValue(0.0), KeyEncoding.encodeValue(-0.0));
+    }
+
+    @Test
+    void numbersDecodeToTheirValue() {
+        for (String value : List.of("9007199254740993", "-9007199254740993", "1.55", "-0.001", "1E+30", "0")) {
+            BigDecimal decimal = new BigDecimal(value);
+            Object decoded = KeyEncoding.decode(KeyEncoding.encodeValue(decimal));
+            assertEquals(0, decimal.compareTo((BigDecimal) decoded), value);
+        }
+    }
+
+    @Test
+    void integerKeysKeepTheirEncoding() {
+        byte[] key = KeyEncoding.encodeKey("42");
+        assertTrue(KeyEncoding.isIntegerKey(key));
+        assertArrayEquals(key, KeyEncoding.encodeKey(42));
+        assertEquals("42", KeyEncoding.keyToString(key));
+        assertEquals("2.5", KeyEncoding.keyToString(KeyEncoding.encodeKey(2.5)));
+    }
+}
@@ -0,0 +1,128 @@
+package org.example;
+
+import com.sleepycat.je.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyRangeTest {
+    @TempDir
+    File tempFolder;
+
+    private Environment environment;
+    private Database database;
+
+    @BeforeEach
+    void setUp() {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        environment = new Environment(tempFolder, envConfig);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        database = environment.openDatabase(null, "items", dbConfig);
+        for (long id = 1; id <= 20; id++) {
+            put(id);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.close();
+        environment.close();
+    }
+
+    @Test
+    void ascendingRangeResumesAfterLastKey() {
+        KeyRange range = new KeyRange(key(5), true, key(15), false, true, Integer.MAX_VALUE);
+        assertEquals(List.of(5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L, 13L, 14L), readAll(range, 3));
+    }
+
+    @Test
+    void descendingRangeResumesBeforeLastKey() {
+        KeyRange range = new KeyRange(key(5), false, key(15), true, false, Integer.MAX_VALUE);
+        assertEquals(List.of(15L, 14L, 13L, 12L, 11L, 10L, 9L, 8L, 7L, 6L), readAll(range, 4));
+    }
+
+    // Границы, которых нет в таблице, и открытые границы
+    @Test
+    void missingAndOpenBounds() {
+        assertEquals(List.of(19L, 20L), readAll(new KeyRange(key(18), false, key(100), true, true, Integer.MAX_VALUE), 1));
+        assertEquals(List.of(20L, 19L), readAll(new KeyRange(key(18), false, key(100), true, false, Integer.MAX_VALUE), 1));
+        assertEquals(List.of(3L, 2L, 1L), readAll(new KeyRange(null, true, key(3), true, false, Integer.MAX_VALUE), 2));
+        assertEquals(List.of(), readAll(new KeyRange(key(30), true, null, true, true, Integer.MAX_VALUE), 2));
+    }
+
+    @Test
+    void limitStopsTheRangeAcrossChunks() {
+        KeyRange range = new KeyRange(null, true, null, true, true, 7);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L), readAll(range, 3));
+        assertEquals(0, range.getRemaining());
+    }
+
+    // Между порциями курсор закрыт: удалённый следующий ключ пропускается, вставленный после
+    // последнего отданного - попадает в ответ, вставленный до него - нет
+    @Test
+    void changesBetweenChunksDoNotRepeatOrSkipRows() {
+        KeyRange range = new KeyRange(key(1), true, key(10), true, true, Integer.MAX_VALUE);
+        List<Long> ids = new ArrayList<>();
+        database.delete(null, new DatabaseEntry(key(5)));
+
+        assertTrue(readChunk(range, 3, ids));
+        assertEquals(List.of(1L, 2L, 3L), ids);
+
+        put(5);
+        database.delete(null, new DatabaseEntry(key(4)));
+        database.delete(null, new DatabaseEntry(key(3)));
+        put(0);
+        assertTrue(readChunk(range, 3, ids));
+        assertEquals(List.of(1L, 2L, 3L, 5L, 6L, 7L), ids);
+
+        database.delete(null, new DatabaseEntry(key(7)));
+        // Последняя порция упирается в верхнюю границу
+        assertFalse(readChunk(range, 3, ids));
+        assertEquals(List.of(1L, 2L, 3L, 5L, 6L, 7L, 8L, 9L, 10L), ids);
+    }
+
+    private List<Long> readAll(KeyRange range, int chunkRows) {
+        List<Long> ids = new ArrayList<>();
+        int chunks = 0;
+        while (readChunk(range, chunkRows, ids)) {
+            assertTrue(++chunks < 100, "range does not advance");
+        }
+        return ids;
+    }
+
+    // Как DatabaseServer.readRangeChunk: true - порция заполнена и за ней могут быть строки
+    private boolean readChunk(KeyRange range, int chunkRows, List<Long> ids) {
+        try (Cursor cursor = database.openCursor(null, null)) {
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            OperationStatus status = range.position(cursor, keyEntry, valueEntry);
+            int rowCount = 0;
+            while (status == OperationStatus.SUCCESS && range.contains(keyEntry.getData()) && range.getRemaining() > 0) {
+                if (rowCount == chunkRows) {
+                    return true;
+                }
+                ids.add((Long) KeyEncoding.decode(keyEntry.getData()));
+                range.advance(keyEntry.getData());
+                rowCount++;
+                status = range.next(cursor, keyEntry, valueEntry);
+            }
+        }
+        return false;
+    }
+
+    private void put(long id) {
+        database.put(null, new DatabaseEntry(key(id)), new DatabaseEntry(new byte[]{RowCodec.FORMAT_VERSION, 0}));
+    }
+
+    private static byte[] key(long id) {
+        return KeyEncoding.encodeKey(id);
+    }
+}
@@ -0,0 +1,113 @@
+package org.example;
+
+import com.sleepycat.je.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrimaryKeyAllocatorTest {
+    private static final String TABLE = "items";
+
+    @TempDir
+    File tempFolder;
+
+    private File keyFile;
+    private EnvironmentRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        File berkeleyDbFolder = new File(tempFolder, "berkeley_db");
+        File tableFolder = new File(berkeleyDbFolder, TABLE);
+        assertTrue(tableFolder.mkdirs());
+
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        try (Environment environment = new Environment(tableFolder, envConfig)) {
+            environment.openDatabase(null, TABLE, dbConfig).close();
+        }
+
+        keyFile = new File(tempFolder, "primary_keys.txt");
+        registry = new EnvironmentRegistry(berkeleyDbFolder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.close();
+    }
+
+    // Файл хранит границу блока: после перезапуска ключи продолжаются за ней,
+    // даже если выданные ключи так и не попали в базу
+    @Test
+    void reservedBlockSurvivesRestart() throws Exception {
+        PrimaryKeyAllocator allocator = new PrimaryKeyAllocator(keyFile, registry);
+        assertEquals(1, allocator.nextKey(TABLE));
+        assertEquals(2, allocator.nextKey(TABLE));
+        assertEquals(List.of("item_id:101"), Files.readAllLines(keyFile.toPath()));
+
+        PrimaryKeyAllocator restarted = new PrimaryKeyAllocator(keyFile, registry);
+        assertEquals(102, restarted.nextKey(TABLE));
+        assertEquals(List.of("item_id:202"), Files.readAllLines(keyFile.toPath()));
+    }
+
+    // Без файла счётчик продолжает с наибольшего целого ключа таблицы
+    @Test
+    void lostKeyFileFallsBackToExistingKeys() throws Exception {
+        EnvironmentRegistry.TableHandle table = registry.getTable(TABLE);
+        for (long id : List.of(5L, 42L, 17L)) {
+            table.getDatabase().put(null, new DatabaseEntry(table.encodeKey(id)), new DatabaseEntry(table.getCodec().encode(Map.of("name", "item " + id))));
+        }
+
+        PrimaryKeyAllocator allocator = new PrimaryKeyAllocator(keyFile, registry);
+        assertEquals(43, allocator.nextKey(TABLE));
+        assertEquals(1, allocator.nextKey("missing_tables"));
+    }
+
+    @Test
+    void concurrentAllocationsNeverRepeatAndCrossBlocks() throws Exception {
+        PrimaryKeyAllocator allocator = new PrimaryKeyAllocator(keyFile, registry);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int batch = t + 1;
+            results.add(executor.submit(() -> {
+                List<Long> keys = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    // Блок из batch подряд идущих ключей, как у ADD_ROWS
+                    long first = allocator.allocate(TABLE, batch);
+                    for (int k = 0; k < batch; k++) {
+                        keys.add(first + k);
+                    }
+                }
+                return keys;
+            }));
+        }
+
+        Set<Long> keys = new HashSet<>();
+        for (Future<List<Long>> result : results) {
+            for (long key : result.get(60, TimeUnit.SECONDS)) {
+                assertTrue(keys.add(key), "key " + key + " issued twice");
+            }
+        }
+        executor.shutdown();
+
+        long last = 50L * threads * (threads + 1) / 2;
+        assertEquals(last, keys.size());
+        assertEquals(last, Collections.max(keys));
+        long persisted = Long.parseLong(Files.readAllLines(keyFile.toPath()).get(0).split(":")[1]);
+        assertTrue(persisted >= last, "persisted limit " + persisted);
+        assertEquals(persisted + 1, new PrimaryKeyAllocator(keyFile, registry).nextKey(TABLE));
+    }
+}
@@ -0,0 +1,125 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RowCacheTest {
+    private static final int ROW_SIZE = 200;
+
+    @Test
+    void rowsAreReturnedUntilInvalidated() {
+        RowCache cache = new RowCache(1024 * 1024, 4);
+        assertNull(cache.get("tours", key(1)));
+
+        byte[] key = key(1);
+        cache.put("tours", key, row(1), ROW_SIZE);
+        // Ключ копируется: изменение массива вызывающим кодом не портит кэш
+        key[0] = 99;
+        assertEquals(row(1), cache.get("tours", key(1)));
+        assertNull(cache.get("clients", key(1)));
+        assertThrows(UnsupportedOperationException.class, () -> cache.get("tours", key(1)).put("x", 1));
+
+        cache.invalidate("tours", key(1));
+        assertNull(cache.get("tours", key(1)));
+        assertEquals(2L, cache.getStats().get("hits"));
+    }
+
+    @Test
+    void rowsHeavierThanTheSegmentAreNotCached() {
+        RowCache cache = new RowCache(4096, 4);
+        cache.put("tours", key(1), row(1), 2048);
+        assertNull(cache.get("tours", key(1)));
+
+        RowCache disabled = new RowCache(0, 4);
+        disabled.put("tours", key(1), row(1), ROW_SIZE);
+        assertNull(disabled.get("tours", key(1)));
+    }
+
+    // Часто читаемые строки переживают проход по таблице, который читает каждую строку один раз
+    @Test
+    void frequentRowsSurviveAScan() {
+        RowCache cache = new RowCache(100 * (ROW_SIZE + 64), 1);
+        // 15 чтений - предел 4-битного счётчика: оценку sketch не перебьют и коллизии строк прохода
+        for (int round = 0; round < 15; round++) {
+            for (int id = 0; id < 20; id++) {
+                if (cache.get("tours", key(id)) == null) {
+                    cache.put("tours", key(id), row(id), ROW_SIZE);
+                }
+            }
+        }
+
+        // Проход втрое больше кэша
+        for (int id = 1000; id < 1300; id++) {
+            if (cache.get("tours", key(id)) == null) {
+                cache.put("tours", key(id), row(id), ROW_SIZE);
+            }
+        }
+
+        for (int id = 0; id < 20; id++) {
+            assertEquals(row(id), cache.get("tours", key(id)), "hot row " + id);
+        }
+        assertTrue((Long) cache.getStats().get("evictions") > 0);
+    }
+
+    // Потоки читают и пишут пересекающиеся ключи во всех сегментах: вес не превышает предела,
+    // а по ключу всегда возвращается строка этого ключа
+    @Test
+    void concurrentAccessKeepsWeightBoundAndRows() throws Exception {
+        long maximumWeight = 64 * 1024;
+        RowCache cache = new RowCache(maximumWeight, 8);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                int wrongRows = 0;
+                start.await();
+                for (int i = 0; i < 20_000; i++) {
+                    // Четверть обращений - к небольшому горячему набору
+                    int id = random.nextInt(4) == 0 ? random.nextInt(50) : random.nextInt(5000);
+                    Map<String, Object> cached = cache.get("tours", key(id));
+                    if (cached == null) {
+                        cache.put("tours", key(id), row(id), ROW_SIZE + random.nextInt(ROW_SIZE));
+                    } else if (!cached.equals(row(id))) {
+                        wrongRows++;
+                    }
+                    if (i % 100 == 0) {
+                        cache.invalidate("tours", key(random.nextInt(5000)));
+                    }
+                }
+                return wrongRows;
+            }));
+        }
+
+        for (Future<Integer> result : results) {
+            assertEquals(0, result.get(60, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        Map<String, Object> stats = cache.getStats();
+        assertEquals(8, stats.get("segments"));
+        assertTrue((Long) stats.get("weightBytes") <= maximumWeight, stats.toString());
+        assertTrue((Long) stats.get("evictions") > 0, stats.toString());
+        assertEquals(threads * 20_000L, (Long) stats.get("hits") + (Long) stats.get("misses"));
+    }
+
+    private static byte[] key(int id) {
+        return ByteBuffer.allocate(4).putInt(id).array();
+    }
+
+    private static Map<String, Object> row(int id) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("tour_id", id);
+        row.put("title", "Tour " + id);
+        return row;
+    }
+}
@@ -0,0 +1,117 @@
+package org.example;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RowCodecTest {
+    private static final String TABLE = "tours";
+    private static final Map<String, String> SCHEMA = Map.of(
+            "tour_id", "integer",
+            "price", "numeric",
+            "is_active", "boolean");
+
+    @TempDir
+    File tempFolder;
+
+    private Environment environment;
+    private RowCodec codec;
+
+    @BeforeEach
+    void setUp() {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        environment = new Environment(tempFolder, envConfig);
+        codec = RowCodec.open(environment, TABLE, SCHEMA);
+    }
+
+    @AfterEach
+    void tearDown() {
+        codec.close();
+        environment.close();
+    }
+
+    @Test
+    void rowsRoundTripWithSchemaTypes() {
+        Map<String, Object> row = new LinkedHashMap<>();
+        // Значения из формы клиента приходят строками
+        row.put("price", "100.25");
+        row.put("tour_id", "7");
+        row.put("title", "Тур");
+        row.put("is_active", "true");
+        row.put("accommodation_id", null);
+
+        byte[] data = codec.encode(row);
+        assertEquals(RowCodec.FORMAT_VERSION, data[0]);
+        assertFalse(RowCodec.isLegacyJson(data, 0));
+
+        Map<String, Object> decoded = codec.decode(data);
+        assertEquals(7, decoded.get("tour_id"));
+        assertEquals(new BigDecimal("100.25"), decoded.get("price"));
+        assertEquals(Boolean.TRUE, decoded.get("is_active"));
+        assertEquals("Тур", decoded.get("title"));
+        assertTrue(decoded.containsKey("accommodation_id"));
+        // Колонки в порядке номеров: сначала колонки схемы, затем новые в порядке появления
+        assertEquals(codec.getColumns(), new ArrayList<>(decoded.keySet()));
+    }
+
+    @Test
+    void projectionSkipsOtherColumns() {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("tour_id", 1);
+        row.put("title", "Тур");
+        row.put("tags", List.of("море", Map.of("nested", 1)));
+        row.put("price", new BigDecimal("9.99"));
+
+        Map<String, Object> decoded = codec.decode(codec.encode(row), Set.of("tour_id", "price"));
+        assertEquals(Map.of("tour_id", 1, "price", new BigDecimal("9.99")), decoded);
+    }
+
+    // Строки, записанные до перехода на бинарный формат, читаются как раньше
+    @Test
+    void legacyJsonRowsDecodeWithAndWithoutProjection() {
+        byte[] legacy = "{\"tour_id\":3,\"title\":\"Old\",\"tags\":[1,{\"a\":[2]}],\"price\":300.25}".getBytes(StandardCharsets.UTF_8);
+        assertTrue(RowCodec.isLegacyJson(legacy, 0));
+
+        Map<String, Object> decoded = codec.decode(legacy);
+        assertEquals(List.of("tour_id", "title", "tags", "price"), new ArrayList<>(decoded.keySet()));
+        assertEquals(3, decoded.get("tour_id"));
+
+        Map<String, Object> projected = codec.decode(legacy, Set.of("title", "price"));
+        assertEquals(List.of("title", "price"), new ArrayList<>(projected.keySet()));
+        assertEquals("Old", projected.get("title"));
+        assertEquals(300.25, projected.get("price"));
+
+        // Строка внутри большего буфера (значение курсора со смещением)
+        byte[] padded = new byte[legacy.length + 4];
+        System.arraycopy(legacy, 0, padded, 2, legacy.length);
+        assertEquals(Map.of("title", "Old"), codec.decode(padded, 2, legacy.length, Set.of("title")));
+    }
+
+    // Номера колонок хранятся в словаре таблицы и переживают переоткрытие
+    @Test
+    void columnOrdinalsSurviveReopen() {
+        byte[] data = codec.encode(Map.of("tour_id", 5, "title", "Тур 5"));
+        List<String> columns = codec.getColumns();
+        codec.close();
+
+        RowCodec reopened = RowCodec.open(environment, TABLE, SCHEMA);
+        assertEquals(columns, reopened.getColumns());
+        assertEquals(Map.of("tour_id", 5, "title", "Тур 5"), reopened.decode(data));
+
+        codec = reopened;
+        codec.encode(Map.of("tour_id", 6, "start_date", "2024-01-01 10:00:00"));
+        assertEquals("start_date", codec.getColumns().get(codec.getColumns().size() - 1));
+    }
+}
@@ -0,0 +1,150 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireProtocolTest {
+    @Test
+    void countsRoundTripAndUseOneByteBelow128() throws IOException {
+        for (int count : List.of(0, 1, 127, 128, 300, 16_383, 16_384, 1 << 21, Integer.MAX_VALUE)) {
+            byte[] bytes = write(out -> WireProtocol.writeCount(out, count));
+            if (count < 128) {
+                assertEquals(1, bytes.length, String.valueOf(count));
+            }
+            assertEquals(count, WireProtocol.readCount(in(bytes)));
+        }
+        assertEquals(5, write(out -> WireProtocol.writeCount(out, Integer.MAX_VALUE)).length);
+    }
+
+    @Test
+    void malformedCountIsRejected() {
+        byte[] continuesForever = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertThrows(StreamCorruptedException.class, () -> WireProtocol.readCount(in(continuesForever)));
+    }
+
+    @Test
+    void valuesRoundTripWithTheirTypes() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "Тур");
+        map.put("price", new BigDecimal("100.25"));
+        map.put("missing", null);
+        List<Object> values = Arrays.asList(null, true, false, 42, -7L, 2.5, "строка", new BigDecimal("1E+30"),
+                new Timestamp(1_700_000_000_000L), List.of(1, "two", List.of()), map);
+
+        for (Object value : values) {
+            Object decoded = WireProtocol.readValue(in(write(out -> WireProtocol.writeValue(out, value))));
+            assertEquals(value, decoded);
+            if (value != null && !(value instanceof Collection) && !(value instanceof Map)) {
+                assertEquals(value.getClass(), decoded.getClass(), value.toString());
+            }
+        }
+
+        // Short и Float передаются как int и double
+        assertEquals(5, WireProtocol.readValue(in(write(out -> WireProtocol.writeValue(out, (short) 5)))));
+        assertEquals(1.5, WireProtocol.readValue(in(write(out -> WireProtocol.writeValue(out, 1.5f)))));
+    }
+
+    @Test
+    void skipValueStopsAtTheNextValue() throws IOException {
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("list", List.of(1, 2L, 3.0, "x", new BigDecimal("0.5")));
+        nested.put("flag", false);
+        List<Object> values = Arrays.asList(null, true, 42, 7L, 2.5, "skipped", new BigDecimal("3.14"),
+                new Timestamp(0), nested);
+
+        byte[] bytes = write(out -> {
+            for (Object value : values) {
+                WireProtocol.writeValue(out, value);
+            }
+            WireProtocol.writeValue(out, "last");
+        });
+        DataInputStream in = in(bytes);
+        for (int i = 0; i < values.size(); i++) {
+            WireProtocol.skipValue(in);
+        }
+        assertEquals("last", WireProtocol.readValue(in));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    void requestFrameCarriesIdCommandAndArguments() throws IOException {
+        byte[] frameBytes = WireProtocol.encodeRequest(17, "SEARCH", Arrays.asList("tours", "price", "RANGE", "250", null));
+        DataInputStream in = in(frameBytes);
+
+        WireProtocol.Frame frame = WireProtocol.readFrame(in);
+        assertEquals(17, frame.getRequestId());
+        assertFalse(frame.hasMore());
+        assertEquals(frameBytes.length, frame.size());
+
+        List<Object> args = new ArrayList<>();
+        assertEquals("SEARCH", frame.readCommand(args));
+        assertEquals(Arrays.asList("tours", "price", "RANGE", "250", null), args);
+        // Соединение закрыто между кадрами
+        assertNull(WireProtocol.readFrame(in));
+    }
+
+    // Ответ частями: все кадры, кроме последнего, с FLAG_MORE; кадры разных запросов перемежаются
+    @Test
+    void multiFrameResponseIsMarkedWithFlagMore() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(WireProtocol.encodeResponse(1, List.of(List.of("id"), List.of(1)), true));
+        stream.write(WireProtocol.encodeResponse(2, "OK"));
+        stream.write(WireProtocol.encodeResponse(1, List.of(List.of(2)), true));
+        stream.write(WireProtocol.encodeResponse(1, WireProtocol.encodeValue(List.of(List.of(3))), false));
+        DataInputStream in = in(stream.toByteArray());
+
+        List<Object> rows = new ArrayList<>();
+        WireProtocol.Frame frame;
+        while ((frame = WireProtocol.readFrame(in)) != null) {
+            if (frame.getRequestId() == 2) {
+                assertFalse(frame.hasMore());
+                assertEquals("OK", frame.readResponse());
+                continue;
+            }
+            rows.addAll((List<?>) frame.readResponse());
+            if (!frame.hasMore()) {
+                break;
+            }
+        }
+        assertEquals(List.of(List.of("id"), List.of(1), List.of(2), List.of(3)), rows);
+        assertNull(WireProtocol.readFrame(in));
+    }
+
+    @Test
+    void corruptFramesAreRejected() throws IOException {
+        byte[] frame = WireProtocol.encodeResponse(1, "OK");
+
+        byte[] badVersion = frame.clone();
+        badVersion[4] = (byte) (WireProtocol.VERSION + 1);
+        assertThrows(StreamCorruptedException.class, () -> WireProtocol.readFrame(in(badVersion)));
+
+        byte[] badLength = frame.clone();
+        badLength[0] = (byte) 0x7F;
+        assertThrows(StreamCorruptedException.class, () -> WireProtocol.readFrame(in(badLength)));
+
+        byte[] badTag = write(out -> out.writeByte(99));
+        assertThrows(StreamCorruptedException.class, () -> WireProtocol.readValue(in(badTag)));
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] write(Writer writer) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        writer.write(out);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static DataInputStream in(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}